@@ -0,0 +1,72 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Heap footprint of HashTree nodes, run with "ant bench-footprint". Builds the same tree of
+ * players, each with STATS_PER_PLAYER stat leaves, twice: once with every node's data in a
+ * HashMap (the layout before CompactNodeMap) and once with the default CompactNodeMap, and
+ * prints the used heap per player after a full GC. Run it with -XX:+UseSerialGC, as the ant
+ * target does, so the numbers don't depend on a concurrent collector's timing.
+ *
+ * Argument: optional number of players (default 200000).
+ */
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+
+public class FootprintBenchmark {
+    static final int STATS_PER_PLAYER = 3;
+    static final String[] STATS = { "PTS", "REB", "AST", "STL", "BLK", "TOV", "PF", "MIN" };
+
+    //keeps the tree being measured reachable across the GC
+    static volatile Object sink;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) {
+        int players = args.length > 0 ? Integer.parseInt(args[0].trim()) : 200000;
+        //player names are built once and shared, so both layouts are charged only for nodes
+        String[] names = new String[players];
+        for (int i = 0; i < players; i++) {
+            names[i] = "Player " + i;
+        }
+        System.out.printf("%-16s %10s %16s %16s%n", "layout", "players", "bytes", "bytes/player");
+        //first round warms up class loading and the JIT; only the second is reported
+        for (int round = 0; round < 2; round++) {
+            measure("HashMap", new HashMapTree(), names, round == 1);
+            measure("CompactNodeMap", new HashTree(), names, round == 1);
+        }
+    }
+
+    static void measure(String layout, HashTree tree, String[] names, boolean report) {
+        long before = usedAfterGc();
+        for (int i = 0; i < names.length; i++) {
+            HashTree player = tree.add(names[i]);
+            for (int s = 0; s < STATS_PER_PLAYER; s++) {
+                player.add(STATS[s]);
+            }
+        }
+        sink = tree;
+        long bytes = usedAfterGc() - before;
+        sink = null;
+        if (report) {
+            System.out.printf("%-16s %10d %16d %16.1f%n", layout, names.length, bytes, (double) bytes / names.length);
+        }
+    }
+
+    static long usedAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    //Every node keeps its children in its own HashMap, as HashTree did before CompactNodeMap
+    static class HashMapTree extends HashTree {
+        HashMapTree() {
+            super(new HashMap());
+        }
+
+        protected HashTree createNewTree() {
+            return new HashMapTree();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Benchmark suite for HashTree's core operations, run with "ant bench".
+ *
+ * Every operation is measured on three tree shapes at each requested size:
+ *   wide      one level of N leaves
+ *   deep      chains of DEEP_LEVELS nodes, N nodes in all
+ *   boxscore  game -> Teams -> team -> player -> stat -> value, N nodes in all
+ * Each measurement runs WARMUP_ITERATIONS timed iterations that are thrown away, then
+ * MEASURE_ITERATIONS that are kept, and reports throughput plus bytes allocated per
+ * operation (from the thread's allocation counter, like JMH's gc profiler).
+ *
+ * Arguments: optional comma-separated sizes (default 1000,100000) and an optional
+ * comma-separated list of operation names to run. 10000000 needs around -Xmx8g.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class HashTreeBenchmark {
+    static final int WARMUP_ITERATIONS = 3;
+    static final int MEASURE_ITERATIONS = 5;
+    static final long ITERATION_NANOS = 1000000000L;
+    static final int DEEP_LEVELS = 256;
+    static final int STATS_PER_PLAYER = 21;
+    static final int SAMPLE_PATHS = 1024;
+
+    static final String[] SHAPES = { "wide", "deep", "boxscore" };
+    static final String[] OPERATIONS = { "add", "getTree", "searchHit", "searchMiss",
+        "searchIndexed", "traverse", "toString", "equals", "hashCodeAfterChange",
+        "javaSerialization", "binaryWriteTo", "binaryReadFrom" };
+
+    //keeps results alive so the JIT cannot drop the work that produced them
+    static volatile Object sink;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 1000, 100000 };
+        if (args.length > 0) {
+            String[] parts = args[0].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+        Set only = args.length > 1 ? new HashSet(Arrays.asList(args[1].split(","))) : null;
+
+        System.out.printf("%-20s %-9s %10s %16s %14s %16s%n",
+            "Benchmark", "shape", "nodes", "ops/s", "error", "B/op");
+        for (int s = 0; s < sizes.length; s++) {
+            for (int sh = 0; sh < SHAPES.length; sh++) {
+                Fixture fixture = new Fixture(SHAPES[sh], sizes[s]);
+                for (int o = 0; o < OPERATIONS.length; o++) {
+                    if (only == null || only.contains(OPERATIONS[o])) {
+                        run(OPERATIONS[o], fixture);
+                    }
+                }
+            }
+        }
+    }
+
+    //Warms up and measures one operation on one fixture, then prints a result line
+    static void run(String operation, Fixture fixture) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation, fixture);
+        }
+        double[] throughput = new double[MEASURE_ITERATIONS];
+        double allocated = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long[] result = iteration(operation, fixture);
+            throughput[i] = result[0] * 1e9 / result[1];
+            allocated += (double) result[2] / result[0];
+        }
+        double mean = 0;
+        for (int i = 0; i < throughput.length; i++) {
+            mean += throughput[i];
+        }
+        mean /= throughput.length;
+        double variance = 0;
+        for (int i = 0; i < throughput.length; i++) {
+            variance += (throughput[i] - mean) * (throughput[i] - mean);
+        }
+        double error = Math.sqrt(variance / (throughput.length - 1));
+        System.out.printf("%-20s %-9s %10d %16.3f %14.3f %16.1f%n", operation, fixture.shape,
+            fixture.nodes, mean, error, allocated / MEASURE_ITERATIONS);
+    }
+
+    //Runs operation repeatedly for ITERATION_NANOS (at least once); returns ops, nanos, bytes
+    static long[] iteration(String operation, Fixture fixture) throws Exception {
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long bytesBefore = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            invoke(operation, fixture, ops);
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        long bytes = THREADS.getThreadAllocatedBytes(thread) - bytesBefore;
+        return new long[] { ops, elapsed, bytes };
+    }
+
+    static void invoke(String operation, Fixture f, long i) throws Exception {
+        if (operation.equals("add")) {
+            sink = f.build();
+        }
+        else if (operation.equals("getTree")) {
+            sink = f.tree.getTree(f.samples[(int) (i % f.samples.length)]);
+        }
+        else if (operation.equals("searchHit")) {
+            sink = f.tree.search(f.deepestKey);
+        }
+        else if (operation.equals("searchMiss")) {
+            sink = f.tree.search("no such key");
+        }
+        else if (operation.equals("searchIndexed")) {
+            sink = f.indexed().search(f.deepestKey);
+        }
+        else if (operation.equals("traverse")) {
+            Counter counter = new Counter();
+            f.tree.traverse(counter);
+            sink = counter;
+        }
+        else if (operation.equals("toString")) {
+            sink = f.tree.toString();
+        }
+        else if (operation.equals("equals")) {
+            sink = Boolean.valueOf(f.tree.equals(f.copy()));
+        }
+        else if (operation.equals("hashCodeAfterChange")) {
+            HashTree leafParent = f.tree.getTree(f.samples[(int) (i % f.samples.length)]);
+            leafParent.add("benchmark");
+            sink = Integer.valueOf(f.tree.hashCode());
+            leafParent.remove("benchmark");
+        }
+        else if (operation.equals("javaSerialization")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(f.tree);
+            out.close();
+            sink = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        }
+        else if (operation.equals("binaryWriteTo")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            f.tree.writeTo(bytes);
+            sink = bytes;
+        }
+        else if (operation.equals("binaryReadFrom")) {
+            HashTree tree = new HashTree();
+            tree.readFrom(new ByteArrayInputStream(f.binary()));
+            sink = tree;
+        }
+        else {
+            throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    //A tree of one shape and size, with the lookups the operations need
+    static class Fixture {
+        final String shape;
+        final int nodes;
+        final HashTree tree;
+        //paths to existing nodes for getTree
+        Object[][] samples;
+        //a key that only occurs at the bottom of the tree, so an unindexed search walks
+        Object deepestKey;
+        private HashTree copy;
+        private HashTree indexed;
+        private byte[] binary;
+
+        Fixture(String shape, int nodes) {
+            this.shape = shape;
+            this.nodes = nodes;
+            this.tree = build();
+        }
+
+        //Builds the tree through add(Collection treePath, Collection values)
+        HashTree build() {
+            HashTree t = new HashTree();
+            List sampled = new ArrayList();
+            Random random = new Random(42);
+            if (shape.equals("wide")) {
+                List values = new ArrayList(nodes);
+                for (int i = 0; i < nodes; i++) {
+                    values.add("key " + i);
+                }
+                t.add(new ArrayList(), values);
+                for (int i = 0; i < SAMPLE_PATHS; i++) {
+                    sampled.add(new Object[] { values.get(random.nextInt(nodes)) });
+                }
+                deepestKey = values.get(nodes - 1);
+            }
+            else if (shape.equals("deep")) {
+                int chains = Math.max(1, nodes / DEEP_LEVELS);
+                for (int c = 0; c < chains; c++) {
+                    List path = new ArrayList(DEEP_LEVELS);
+                    for (int d = 0; d < DEEP_LEVELS - 1; d++) {
+                        path.add("chain " + c + " level " + d);
+                    }
+                    t.add(path, Arrays.asList(new Object[] { "leaf " + c }));
+                    if (sampled.size() < SAMPLE_PATHS) {
+                        sampled.add(path.toArray());
+                    }
+                }
+                deepestKey = "leaf " + (chains - 1);
+            }
+            else {
+                //game, Teams, two teams, then 13 players each with a stat and value per stat
+                int perGame = 1 + 1 + 2 + 2 * 13 * (1 + 2 * STATS_PER_PLAYER);
+                int games = Math.max(1, nodes / perGame);
+                for (int g = 0; g < games; g++) {
+                    for (int team = 0; team < 2; team++) {
+                        for (int p = 0; p < 13; p++) {
+                            List player = Arrays.asList(new Object[] {
+                                "game " + g, "Teams", "team " + team, "player " + p });
+                            for (int s = 0; s < STATS_PER_PLAYER; s++) {
+                                List stat = new ArrayList(player);
+                                stat.add("stat " + s);
+                                t.add(stat, Arrays.asList(new Object[] { Long.valueOf(random.nextInt(40)) }));
+                            }
+                            if (sampled.size() < SAMPLE_PATHS) {
+                                sampled.add(player.toArray());
+                            }
+                        }
+                    }
+                }
+                t.add(Arrays.asList(new Object[] { "game " + (games - 1), "Teams", "team 1", "player 12" }), "triple double");
+                deepestKey = "triple double";
+            }
+            samples = (Object[][]) sampled.toArray(new Object[sampled.size()][]);
+            return t;
+        }
+
+        HashTree copy() {
+            if (copy == null) {
+                copy = new HashTree();
+                copy.add(tree);
+            }
+            return copy;
+        }
+
+        HashTree indexed() {
+            if (indexed == null) {
+                indexed = copy();
+                indexed.buildIndex();
+            }
+            return indexed;
+        }
+
+        byte[] binary() throws Exception {
+            if (binary == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                tree.writeTo(bytes);
+                binary = bytes.toByteArray();
+            }
+            return binary;
+        }
+    }
+
+    //Counts visited nodes and leaves
+    static class Counter implements HashTreeTraverser {
+        long nodes;
+        long leaves;
+
+        public void addNode(Object node, HashTree tree) {
+            nodes++;
+        }
+        public void subtractNode() {
+        }
+        public void processPath() {
+            leaves++;
+        }
+    }
+}
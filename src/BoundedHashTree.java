@@ -0,0 +1,366 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * HashTree that stays within a budget by evicting whole subtrees, for use as a cache of
+ * per-game stat trees. The budget counts either nodes or estimated bytes, and the unit of
+ * eviction is the subtree at a fixed depth: 1 evicts top-level subtrees (whole games),
+ * 2 evicts the subtrees one level down (teams), and so on.
+ *
+ * Eviction is least-recently-used. The subtrees at the eviction depth are linked into a ring
+ * through fields on the nodes themselves, least recently used first, so a lookup that reaches
+ * one (getTree, and so every path lookup through it, or a search that lands inside it) moves
+ * it to the back with a few pointer writes and no hashing; a repeat lookup of the most recent
+ * one only compares a pointer. Traversals don't count as use, so one full scan does not flush
+ * the cache. The subtree being written to is never evicted by its own write.
+ *
+ * Nodes are created through createNewTree, and a subtree handed to add or set is copied in
+ * unless it is a detached node of the same tree, so the budget sees every node. Changes made
+ * directly through entrySet(), keySet() or values() bypass the budget. Java serialization
+ * writes a plain HashTree.
+ */
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+
+public class BoundedHashTree extends HashTree {
+    //rough heap cost of one node and its map slot, not counting its key
+    static final long NODE_BYTES = 96;
+
+    private final transient Budget budget;
+    //key this node is attached under in its parent
+    private transient Object key;
+    //distance from the root, valid while attached
+    private transient int depth;
+    //weight of everything below this node
+    private transient long weight;
+    //neighbours on the recency ring, for subtrees at the eviction depth
+    private transient BoundedHashTree prev;
+    private transient BoundedHashTree next;
+
+    private BoundedHashTree(Budget budget) {
+        this.budget = budget;
+    }
+
+    /* Returns an empty tree holding at most maxNodes nodes, evicting subtrees at
+     * evictionDepth (1 for top-level subtrees) to stay within it.
+     */
+    public static BoundedHashTree withMaxNodes(long maxNodes, int evictionDepth) {
+        return create(maxNodes, false, evictionDepth);
+    }
+
+    //Same as previous method, bounding the estimated heap bytes of nodes and keys instead
+    public static BoundedHashTree withMaxBytes(long maxBytes, int evictionDepth) {
+        return create(maxBytes, true, evictionDepth);
+    }
+
+    private static BoundedHashTree create(long max, boolean bytes, int evictionDepth) {
+        if (max <= 0 || evictionDepth < 1) {
+            throw new IllegalArgumentException("Budget and eviction depth must be positive.");
+        }
+        Budget budget = new Budget(max, bytes, evictionDepth);
+        budget.root = new BoundedHashTree(budget);
+        return budget.root;
+    }
+
+    //Returns the weight (nodes or estimated bytes) of the whole tree
+    public long getWeight() {
+        return budget.root.weight;
+    }
+
+    //Returns the number of getTree lookups that reached a subtree at the eviction depth
+    public long getHits() {
+        return budget.hits;
+    }
+
+    //Returns the number of getTree lookups at or above the eviction depth that found nothing
+    public long getMisses() {
+        return budget.misses;
+    }
+
+    //Returns the number of subtrees evicted so far
+    public long getEvictions() {
+        return budget.evictions;
+    }
+
+    //Sets the hit, miss and eviction counters back to 0
+    public void resetStats() {
+        budget.hits = 0;
+        budget.misses = 0;
+        budget.evictions = 0;
+    }
+
+    //Looks key up, marking the subtree at the eviction depth it reaches as recently used
+    public HashTree getTree(Object key) {
+        BoundedHashTree tree = (BoundedHashTree) data.get(key);
+        int unitDepth = budget.depth;
+        if (depth < unitDepth) {
+            if (tree == null) {
+                budget.misses++;
+            }
+            else if (depth + 1 == unitDepth) {
+                budget.touch(tree);
+                budget.hits++;
+            }
+        }
+        return tree;
+    }
+
+    public HashTree search(Object key) {
+        HashTree result = super.search(key);
+        if (result != null) {
+            BoundedHashTree unit = unitOf((BoundedHashTree) result);
+            if (unit != null) {
+                budget.touch(unit);
+            }
+        }
+        return result;
+    }
+
+    protected HashTree createNewTree() {
+        return new BoundedHashTree(budget);
+    }
+    protected HashTree createNewTree(Object key) {
+        HashTree tree = createNewTree();
+        tree.add(key);
+        return tree;
+    }
+    protected HashTree createNewTree(Collection values) {
+        HashTree tree = createNewTree();
+        tree.add(values);
+        return tree;
+    }
+
+    protected void putNode(Object key, HashTree tree) {
+        BoundedHashTree node = adopt(tree);
+        BoundedHashTree previous = (BoundedHashTree) data.get(key);
+        super.putNode(key, node);
+        node.key = key;
+        boolean attached = isAttached();
+        long delta = budget.weigh(key) + node.weight;
+        if (previous != null && previous != node) {
+            delta -= budget.weigh(key) + previous.weight;
+            if (attached) {
+                unlinkUnits(previous);
+            }
+        }
+        if (attached) {
+            linkUnits(node, depth + 1);
+        }
+        addWeight(delta);
+        if (attached) {
+            budget.evictFor(unitOf(node));
+        }
+    }
+
+    protected HashTree removeNode(Object key) {
+        HashTree previous = super.removeNode(key);
+        if (previous != null) {
+            BoundedHashTree node = (BoundedHashTree) previous;
+            if (isAttached()) {
+                unlinkUnits(node);
+            }
+            addWeight(-budget.weigh(key) - node.weight);
+        }
+        return previous;
+    }
+
+    public void clear() {
+        if (isAttached()) {
+            Iterator iter = data.values().iterator();
+            while (iter.hasNext()) {
+                unlinkUnits((BoundedHashTree) iter.next());
+            }
+        }
+        super.clear();
+        addWeight(-weight);
+    }
+
+    public void replaceKey(Object currentKey, Object newKey) {
+        BoundedHashTree moved = (BoundedHashTree) data.get(currentKey);
+        BoundedHashTree previous = (BoundedHashTree) data.get(newKey);
+        super.replaceKey(currentKey, newKey);
+        long delta = 0;
+        if (moved != null) {
+            moved.key = newKey;
+            delta += budget.weigh(newKey) - budget.weigh(currentKey);
+        }
+        if (previous != null && previous != moved) {
+            delta -= budget.weigh(newKey) + previous.weight;
+            if (isAttached()) {
+                unlinkUnits(previous);
+            }
+        }
+        addWeight(delta);
+        if (isAttached()) {
+            budget.evictFor(moved != null ? unitOf(moved) : null);
+        }
+    }
+
+    //Serialized as a plain HashTree, since the budget and recency ring are not
+    private Object writeReplace() {
+        HashTree copy = new HashTree();
+        copy.add(this);
+        return copy;
+    }
+
+    //Returns tree if it can be attached as is, otherwise a detached copy of it in this tree
+    private BoundedHashTree adopt(HashTree tree) {
+        if (tree instanceof BoundedHashTree && ((BoundedHashTree) tree).budget == budget
+                && tree.parent == null && tree != budget.root) {
+            return (BoundedHashTree) tree;
+        }
+        BoundedHashTree copy = new BoundedHashTree(budget);
+        if (tree != null) {
+            copy.add(tree);
+        }
+        return copy;
+    }
+
+    //True if this node hangs under the root of its tree
+    private boolean isAttached() {
+        HashTree node = this;
+        while (node.parent != null) {
+            node = node.parent;
+        }
+        return node == budget.root;
+    }
+
+    //Adds delta to the weight of this node and every ancestor
+    private void addWeight(long delta) {
+        for (HashTree node = this; node != null; node = node.parent) {
+            ((BoundedHashTree) node).weight += delta;
+        }
+    }
+
+    //Returns the subtree at the eviction depth that node is in, or null if node is above it
+    private BoundedHashTree unitOf(BoundedHashTree node) {
+        while (node != null && node.depth > budget.depth) {
+            node = (BoundedHashTree) node.parent;
+        }
+        return node != null && node.depth == budget.depth ? node : null;
+    }
+
+    //Sets the depths of tree, attached at depth, and puts its subtrees at the eviction depth on the ring
+    private void linkUnits(BoundedHashTree tree, int depth) {
+        ArrayDeque stack = new ArrayDeque();
+        tree.depth = depth;
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            BoundedHashTree node = (BoundedHashTree) stack.pop();
+            if (node.depth == budget.depth) {
+                budget.link(node);
+            }
+            Iterator iter = node.data.values().iterator();
+            while (iter.hasNext()) {
+                BoundedHashTree child = (BoundedHashTree) iter.next();
+                child.depth = node.depth + 1;
+                stack.push(child);
+            }
+        }
+    }
+
+    //Takes tree's subtrees at the eviction depth off the ring; nothing below them is visited
+    private void unlinkUnits(BoundedHashTree tree) {
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            BoundedHashTree node = (BoundedHashTree) stack.pop();
+            if (node.depth == budget.depth) {
+                budget.unlink(node);
+                continue;
+            }
+            Iterator iter = node.data.values().iterator();
+            while (iter.hasNext()) {
+                stack.push(iter.next());
+            }
+        }
+    }
+
+    //Budget, recency ring and counters shared by every node of one tree
+    private static class Budget {
+        final long max;
+        final boolean bytes;
+        final int depth;
+        BoundedHashTree root;
+        //least recently used subtree; its prev is the most recently used. null when empty
+        BoundedHashTree eldest;
+        long hits;
+        long misses;
+        long evictions;
+
+        Budget(long max, boolean bytes, int depth) {
+            this.max = max;
+            this.bytes = bytes;
+            this.depth = depth;
+        }
+
+        //Weight of one node attached under key
+        long weigh(Object key) {
+            if (!bytes) {
+                return 1;
+            }
+            if (key instanceof String) {
+                return NODE_BYTES + 40 + 2L * ((String) key).length();
+            }
+            return NODE_BYTES + 16;
+        }
+
+        //Adds node to the ring as the most recently used
+        void link(BoundedHashTree node) {
+            if (eldest == null) {
+                node.prev = node;
+                node.next = node;
+                eldest = node;
+            }
+            else {
+                node.prev = eldest.prev;
+                node.next = eldest;
+                eldest.prev.next = node;
+                eldest.prev = node;
+            }
+        }
+
+        void unlink(BoundedHashTree node) {
+            if (node.next == null) {
+                return;
+            }
+            if (node.next == node) {
+                eldest = null;
+            }
+            else {
+                node.prev.next = node.next;
+                node.next.prev = node.prev;
+                if (eldest == node) {
+                    eldest = node.next;
+                }
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        //Marks node as the most recently used
+        void touch(BoundedHashTree node) {
+            if (node.next == null || eldest.prev == node) {
+                return;
+            }
+            if (node == eldest) {
+                //the ring is circular, so moving the eldest to the back is one step forward
+                eldest = node.next;
+                return;
+            }
+            unlink(node);
+            link(node);
+        }
+
+        //Evicts least recently used subtrees until the tree is within budget, never evicting keep
+        void evictFor(BoundedHashTree keep) {
+            while (root.weight > max && eldest != null) {
+                BoundedHashTree victim = eldest != keep ? eldest : eldest.next;
+                if (victim == keep) {
+                    return;
+                }
+                ((BoundedHashTree) victim.parent).removeNode(victim.key);
+                evictions++;
+            }
+        }
+    }
+}
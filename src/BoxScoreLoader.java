@@ -0,0 +1,257 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Streams box-score JSON such as 20150123_ATL_OKC_boxscore.json into a HashTree without
+ * building a DOM. json-simple's parser hands tokens to a ContentHandler, which walks the tree
+ * alongside the document:
+ *   - an object entry becomes a node ("Teams", then "OKC")
+ *   - an object inside an array is a player record, added as a node named by its "Name"
+ *     field, with one node per stat ("PTS") holding the stat's value (21) as its only child
+ *   - any other primitive becomes a child of its entry's node
+ * So Teams -> OKC -> Kevin Durant -> PTS -> 21. Only the fields of the record being read
+ * are held in memory.
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+public class BoxScoreLoader {
+    //field of a player record that names its node
+    public static final String NAME_FIELD = "Name";
+
+    private BoxScoreLoader() {
+    }
+
+    //Reads one box score from file into a new HashTree
+    public static HashTree load(File file) throws IOException, ParseException {
+        HashTree tree = new HashTree();
+        load(tree, file);
+        return tree;
+    }
+
+    //Reads one box score from file into tree
+    public static void load(HashTree tree, File file) throws IOException, ParseException {
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            load(tree, reader);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    //Streams one box score from reader into tree
+    public static void load(HashTree tree, Reader reader) throws IOException, ParseException {
+        new JSONParser().parse(reader, new Handler(tree));
+    }
+
+    /* Loads every .json file in dir on the given number of threads. Each game goes under its
+     * own node named after the file (20150123_ATL_OKC_boxscore), so games don't merge. Every
+     * file is parsed into its own subtree, then grafted into tree in one step, so tree need
+     * not be thread-safe.
+     */
+    public static void loadDirectory(final HashTree tree, File dir, int threads) throws IOException, ParseException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(".json");
+            }
+        });
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List futures = new ArrayList(files.length);
+            for (int i = 0; i < files.length; i++) {
+                final File file = files[i];
+                futures.add(pool.submit(new Callable() {
+                    public Object call() throws Exception {
+                        HashTree game = tree.createNewTree();
+                        load(game, file);
+                        String name = file.getName();
+                        synchronized (tree) {
+                            tree.set(name.substring(0, name.length() - ".json".length()), game);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                ((Future) futures.get(i)).get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + dir, e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ParseException) {
+                throw (ParseException) cause;
+            }
+            throw new IOException("Failed to load " + dir, cause);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    //Same as previous method, using one thread per available processor
+    public static void loadDirectory(HashTree tree, File dir) throws IOException, ParseException {
+        loadDirectory(tree, dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    //Walks tree in step with the parser's tokens
+    private static class Handler implements ContentHandler {
+        //node for each enclosing object or array; a record's node is its array's node
+        private final ArrayDeque nodes = new ArrayDeque();
+        //true for each enclosing container that is an array
+        private final ArrayDeque inArray = new ArrayDeque();
+        //entry key currently being read in the innermost object
+        private String key;
+        //fields of the player record being read, as alternating stat name and value
+        private List record;
+        private int recordDepth;
+
+        Handler(HashTree tree) {
+            nodes.push(tree);
+        }
+
+        public void startJSON() {
+        }
+
+        public void endJSON() {
+        }
+
+        public boolean startObject() {
+            if (record != null) {
+                recordDepth++;
+                return true;
+            }
+            if (!inArray.isEmpty() && ((Boolean) inArray.peek()).booleanValue()) {
+                record = new ArrayList();
+                recordDepth = 1;
+                return true;
+            }
+            descend();
+            inArray.push(Boolean.FALSE);
+            return true;
+        }
+
+        public boolean endObject() {
+            if (record != null) {
+                if (--recordDepth == 0) {
+                    addRecord();
+                    record = null;
+                }
+                return true;
+            }
+            ascend();
+            return true;
+        }
+
+        public boolean startObjectEntry(String key) {
+            this.key = key;
+            return true;
+        }
+
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        public boolean startArray() {
+            if (record != null) {
+                recordDepth++;
+                return true;
+            }
+            descend();
+            inArray.push(Boolean.TRUE);
+            return true;
+        }
+
+        public boolean endArray() {
+            if (record != null) {
+                recordDepth--;
+                return true;
+            }
+            ascend();
+            return true;
+        }
+
+        public boolean primitive(Object value) {
+            if (record != null) {
+                //values nested deeper inside a record are skipped
+                if (recordDepth == 1) {
+                    record.add(key);
+                    record.add(value);
+                }
+                return true;
+            }
+            HashTree node = (HashTree) nodes.peek();
+            boolean array = !inArray.isEmpty() && ((Boolean) inArray.peek()).booleanValue();
+            HashTree target = array ? node : node.add(key);
+            if (value != null) {
+                target.add(value);
+            }
+            return true;
+        }
+
+        //Enters the node for the container that is starting
+        private void descend() {
+            HashTree node = (HashTree) nodes.peek();
+            boolean array = !inArray.isEmpty() && ((Boolean) inArray.peek()).booleanValue();
+            //the document's outer object is the tree itself
+            if (inArray.isEmpty()) {
+                nodes.push(node);
+            }
+            else {
+                nodes.push(array ? node : node.add(key));
+            }
+        }
+
+        private void ascend() {
+            nodes.pop();
+            inArray.pop();
+        }
+
+        //Adds the finished record under its name, one node per stat with its value below
+        private void addRecord() {
+            Object name = null;
+            for (int i = 0; i < record.size(); i += 2) {
+                if (NAME_FIELD.equals(record.get(i))) {
+                    name = record.get(i + 1);
+                }
+            }
+            HashTree parent = (HashTree) nodes.peek();
+            HashTree player = parent.add(name != null ? name : Integer.valueOf(parent.size()));
+            for (int i = 0; i < record.size(); i += 2) {
+                if (NAME_FIELD.equals(record.get(i))) {
+                    continue;
+                }
+                HashTree stat = player.add(record.get(i));
+                Object value = record.get(i + 1);
+                if (value != null) {
+                    stat.add(value);
+                }
+            }
+        }
+    }
+}
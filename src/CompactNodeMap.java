@@ -0,0 +1,246 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Node map used for the data of every HashTree node. Most nodes of a box-score tree
+ * are leaves or hold a handful of stat strings, so instead of giving each one its own
+ * HashMap the entries are kept inline:
+ *   - no entries: a shared empty array, nothing allocated per node
+ *   - up to COMPACT_LIMIT entries: one array of alternating keys and values, scanned linearly
+ *   - past COMPACT_LIMIT entries: a regular HashMap
+ * On a 64-bit JVM with compressed oops an empty node costs 32 bytes instead of the 48 of
+ * an empty HashMap, and a node with three children about 80 bytes instead of about 224.
+ */
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+public class CompactNodeMap extends AbstractMap implements Serializable {
+    //largest number of entries kept inline before switching to a HashMap
+    public static final int COMPACT_LIMIT = 8;
+    //shared by every empty node
+    private static final Object[] EMPTY = new Object[0];
+
+    //alternating key/value pairs while compact; EMPTY once grown into map
+    private Object[] entries = EMPTY;
+    private int size;
+    //non-null once the node has more than COMPACT_LIMIT entries
+    private Map map;
+
+    public CompactNodeMap() {
+    }
+
+    public int size() {
+        return map != null ? map.size() : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return map != null ? map.containsKey(key) : indexOf(key) >= 0;
+    }
+
+    public Object get(Object key) {
+        if (map != null) {
+            return map.get(key);
+        }
+        int i = indexOf(key);
+        return i >= 0 ? entries[i + 1] : null;
+    }
+
+    public Object put(Object key, Object value) {
+        if (map != null) {
+            return map.put(key, value);
+        }
+        int i = indexOf(key);
+        if (i >= 0) {
+            Object previous = entries[i + 1];
+            entries[i + 1] = value;
+            return previous;
+        }
+        if (size == COMPACT_LIMIT) {
+            grow();
+            return map.put(key, value);
+        }
+        if (entries.length == size * 2) {
+            Object[] bigger = new Object[size == 0 ? 2 : Math.min(size * 4, COMPACT_LIMIT * 2)];
+            System.arraycopy(entries, 0, bigger, 0, size * 2);
+            entries = bigger;
+        }
+        entries[size * 2] = key;
+        entries[size * 2 + 1] = value;
+        size++;
+        return null;
+    }
+
+    public Object remove(Object key) {
+        if (map != null) {
+            return map.remove(key);
+        }
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Object previous = entries[i + 1];
+        removeAt(i);
+        return previous;
+    }
+
+    public void clear() {
+        map = null;
+        entries = EMPTY;
+        size = 0;
+    }
+
+    //Visits the inline entries straight from the array, with no iterator or entry objects
+    public void forEach(BiConsumer action) {
+        if (map != null) {
+            map.forEach(action);
+            return;
+        }
+        for (int i = 0; i < size * 2; i += 2) {
+            action.accept(entries[i], entries[i + 1]);
+        }
+    }
+
+    public Set entrySet() {
+        return map != null ? map.entrySet() : new EntrySet();
+    }
+
+    /* Creates the map a node moves its entries into once it outgrows COMPACT_LIMIT. Subclasses
+     * return a map specialized for the keys they expect.
+     */
+    protected Map createLargeMap() {
+        return new HashMap(COMPACT_LIMIT * 4);
+    }
+
+    //Returns the map the entries were moved into, or null while they are still inline
+    protected Map largeMap() {
+        return map;
+    }
+
+    //Moves the inline entries into createLargeMap() once the node outgrows COMPACT_LIMIT
+    private void grow() {
+        Map grown = createLargeMap();
+        for (int i = 0; i < size * 2; i += 2) {
+            grown.put(entries[i], entries[i + 1]);
+        }
+        map = grown;
+        entries = EMPTY;
+        size = 0;
+    }
+
+    //Returns the array position of key, or -1 if not present
+    private int indexOf(Object key) {
+        Object[] e = entries;
+        int end = size * 2;
+        if (key == null) {
+            for (int i = 0; i < end; i += 2) {
+                if (e[i] == null) {
+                    return i;
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < end; i += 2) {
+                if (key.equals(e[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int i) {
+        int end = size * 2;
+        System.arraycopy(entries, i + 2, entries, i, end - i - 2);
+        entries[end - 2] = null;
+        entries[end - 1] = null;
+        size--;
+        if (size == 0) {
+            entries = EMPTY;
+        }
+    }
+
+    //Live view of the inline entries
+    private class EntrySet extends AbstractSet {
+        public int size() {
+            return CompactNodeMap.this.size();
+        }
+        public Iterator iterator() {
+            return map != null ? map.entrySet().iterator() : new EntryIterator();
+        }
+        public void clear() {
+            CompactNodeMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator {
+        int next;
+        int last = -1;
+
+        public boolean hasNext() {
+            return next < size * 2;
+        }
+        public Object next() {
+            if (next >= size * 2) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next += 2;
+            return new Slot(last);
+        }
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    //Entry handed out while iterating; writes through to the inline array
+    private class Slot implements Map.Entry {
+        final int i;
+        final Object key;
+
+        Slot(int i) {
+            this.i = i;
+            this.key = entries[i];
+        }
+        public Object getKey() {
+            return key;
+        }
+        public Object getValue() {
+            return entries[i + 1];
+        }
+        public Object setValue(Object value) {
+            Object previous = entries[i + 1];
+            entries[i + 1] = value;
+            return previous;
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            Object value = getValue();
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+        public int hashCode() {
+            Object value = getValue();
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Thread-safe HashTree. Every node keeps its children in its own ConcurrentHashMap, so
+ * writers working on different branches never touch the same map and writers on the
+ * same node only contend on the ConcurrentHashMap bin they hit. addTreePath descends through
+ * add(key), so each missing path segment is created atomically. Reads (getTree, list,
+ * containsKey, search, traverse) take no locks and see a weakly consistent view.
+ * Null keys are not supported.
+ */
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class ConcurrentHashTree extends HashTree {
+
+    //creates new empty ConcurrentHashTree
+    public ConcurrentHashTree() {
+        super(new ConcurrentHashMap());
+    }
+
+    //creates new ConcurrentHashTree and adds given object as top-level node
+    public ConcurrentHashTree(Object key) {
+        this();
+        add(key);
+    }
+
+    //Creates new ConcurrentHashTree and adds all objects in collection as top level nodes
+    public ConcurrentHashTree(Collection keys) {
+        this();
+        add(keys);
+    }
+
+    //Creates new ConcurrentHashTree and adds all objects in array as top level nodes
+    public ConcurrentHashTree(Object[] keys) {
+        this();
+        for (int i = 0; i < keys.length; i++) {
+            add(keys[i]);
+        }
+    }
+
+    protected HashTree createNewTree() {
+        return new ConcurrentHashTree();
+    }
+    protected HashTree createNewTree(Object key) {
+        return new ConcurrentHashTree(key);
+    }
+    protected HashTree createNewTree(Collection values) {
+        return new ConcurrentHashTree(values);
+    }
+
+    //Adds key at current level if absent. Two threads adding the same key get the same subtree.
+    public HashTree add(Object key) {
+        HashTree existing = (HashTree) data.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        HashTree newTree = createNewTree();
+        existing = (HashTree) ((ConcurrentMap) data).putIfAbsent(key, newTree);
+        if (existing != null) {
+            return existing;
+        }
+        newTree.parent = this;
+        return newTree;
+    }
+
+    //Adds key, then the values under whichever subtree won the race for key
+    public void add(Object key, Object[] values) {
+        add(key).add(values);
+    }
+
+    public void add(Object key, Collection values) {
+        add(key).add(values);
+    }
+
+    public void add(Object key, HashTree subtree) {
+        add(key).add(subtree);
+    }
+
+    //Moves the branch under currentKey to newKey; does nothing if currentKey is absent
+    public void replaceKey(Object currentKey, Object newKey) {
+        HashTree tree = (HashTree) data.remove(currentKey);
+        if (tree != null) {
+            data.put(newKey, tree);
+        }
+    }
+
+    //A cached digest could be marked valid just after another thread changed the tree,
+    //so concurrent trees hash on demand
+    protected boolean cachesDigest() {
+        return false;
+    }
+
+    protected void invalidateDigest() {
+    }
+
+    //Nodes are added without going through putNode, so counts are taken by walking the tree
+    protected boolean tracksStats() {
+        return false;
+    }
+
+    //The key index is not thread-safe, so concurrent trees always search by walking
+    public void buildIndex() {
+        throw new UnsupportedOperationException(
+            "ConcurrentHashTree does not support a key index.");
+    }
+}
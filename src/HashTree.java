@@ -5,15 +5,31 @@
  * January 25, 2015
  */
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.io.File;
 import java.io.FileReader;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -23,16 +39,34 @@ import org.json.JSONArray;
 
 public class HashTree implements Serializable, Map {
     protected Map data; 
+    //optional key index shared by every node of an indexed tree; null when not indexed
+    protected transient HashTreeIndex index; 
+    //node this tree is attached under, used to invalidate cached digests upwards
+    protected transient HashTree parent; 
+    //cached structural digest of this subtree; 0 when it has to be recomputed
+    private transient long digest; 
+    //last snapshot of this subtree (held weakly), reused as long as frozenCurrent says nothing has changed
+    private transient Frozen frozen; 
+    private transient boolean frozenCurrent; 
+    //nodes below this one, how many of them have no children, and how many levels they span
+    private transient long below; 
+    private transient long leaves; 
+    private transient int height; 
     
     //creates new empty HashTree
     public HashTree() { 
-        data = new HashMap(); 
+        data = new CompactNodeMap(); 
+    }
+    
+    //creates new empty HashTree that keeps its top level in data, for subclasses with their own maps
+    protected HashTree(Map data) { 
+        this.data = data; 
     }
     
     //creates new HashTree  and adds given object as top-level node
     public HashTree(Object key) { 
-        data = new HashMap(); 
-        data.put(key, new HashTree()); 
+        data = new CompactNodeMap(); 
+        putNode(key, new HashTree()); 
     } 
     
     //Map must also be given a HashTree, or else UOE is thrown
@@ -56,17 +90,42 @@ public class HashTree implements Serializable, Map {
         return data.containsValue(value); 
     }
     
-    // adds key value pair to HashTree
-    //similar to calling HashTree.add(key,value)
-    public Object put(Object key, Object value) { 
-        Object previous = data.get(key); 
-        add(key, value); 
-        return previous; 
+    // adds key value pair to HashTree: a HashTree value is added under key as a subtree,
+    //anything else as a key one level below key
+    public Object put(Object key, Object value) {
+        Object previous = data.get(key);
+        if (value instanceof HashTree) {
+            add(key, (HashTree) value);
+        }
+        else {
+            add(key).add(value);
+        }
+        return previous;
     }
     
     //Clears all contents from HashTree
     public void clear() { 
+        long oldBelow = below; 
+        long oldEffective = effectiveLeaves(); 
+        int oldHeight = height; 
+        Iterator iter = data.entrySet().iterator(); 
+        while (iter.hasNext()) { 
+            Map.Entry entry = (Map.Entry) iter.next(); 
+            HashTree child = (HashTree) entry.getValue(); 
+            if (index != null) { 
+                index.removeTree(entry.getKey(), this, child); 
+            }
+            markChanged(entry.getKey()); 
+            if (child != null && child.parent == this) { 
+                child.parent = null; 
+            }
+        }
         data.clear(); 
+        below = 0; 
+        leaves = 0; 
+        height = 0; 
+        invalidateDigest(); 
+        propagateStats(-oldBelow, oldEffective, oldHeight); 
     }
     
     //Returns collection of all subtrees of current HashTree
@@ -76,34 +135,31 @@ public class HashTree implements Serializable, Map {
     
     //Adds key as a node, then adds the provided HashTree to that node
     public void add(Object key, HashTree subtree){ 
-        add(key); 
-        getTree(key).add(subtree); 
+        add(key).add(subtree); 
     }
     
-    // Adds all nodes and branches of given tree to HashTree
+    /* Adds all nodes and branches of given tree to HashTree, copying the ones that are missing 
+     * here. See HashTreeMerge for grafting subtrees in without copying them and for other ways 
+     * of settling keys both trees have. 
+     */
     public void add(HashTree newTree) { 
-        Iterator iter = newTree.list().iterator();
-        while(iter.hasNext()) { 
-            Object item = iter.next(); 
-            add(item); 
-            getTree(item).add(newTree.getTree(item)); 
-        }
+        HashTreeMerge.create().merge(this, newTree); 
     }
     
     //Creates new HashTree and adds all objects in collection as top level nodes in tree
     public HashTree(Collection keys) { 
-        data = new HashMap(); 
+        data = new CompactNodeMap(); 
         Iterator it = keys.iterator(); 
         while(it.hasNext()) { 
-            data.put(it.next(), new HashTree()); 
+            putNode(it.next(), new HashTree()); 
         }
     }
     
     //Creates new HashTree and adds all objects in passed array as top level nodes in tree
     public HashTree(Object[] keys) { 
-        data = new HashMap(); 
-        for (int i = 0; i < keys.length(); i++) { 
-            data.put(keys[x], new HashTree()); 
+        data = new CompactNodeMap(); 
+        for (int i = 0; i < keys.length; i++) { 
+            putNode(keys[i], new HashTree()); 
         }
     }
     
@@ -119,22 +175,22 @@ public class HashTree implements Serializable, Map {
     
     //Sets a key and its value in the HashTree. 
     public void set(Object key, Object value) { 
-        data.put(key,createNewTree(value)); 
+        putNode(key, createNewTree(value)); 
     }
     
     //Sets a key into HashTree and assigns it a HashTree as its subtree
     public void set(Object key, HashTree t) { 
-        data.put(key, t); 
+        putNode(key, t); 
     }
     
     //Sets a key and its values into the HashTree
     public void set(Object key, Object[] values) { 
-        data.put(key, createNewTree(Arrays.asList(values))); 
+        putNode(key, createNewTree(Arrays.asList(values))); 
     }
     
     //Sets a key and its collection of values into the HashTree
     public void set(Object key, Collection values) { 
-        data.put(key, createNewTree(values)); 
+        putNode(key, createNewTree(values)); 
     }
     
     /*Sets a key and its values into the HashTree. It sets up a key in the current node, 
@@ -145,7 +201,7 @@ public class HashTree implements Serializable, Map {
      */
     public void set(Object[] treePath, Object[] values) { 
         if(treePath != null && values != null) { 
-            set(Arrays.asList(treePath), Arrays.asList(values)); 
+            addTreePath(treePath).set(Arrays.asList(values)); 
         } 
     }
     
@@ -157,7 +213,7 @@ public class HashTree implements Serializable, Map {
     */
     public void set(Object[] treePath, Collection values) { 
         if(treePath != null) { 
-            set(Arrays.asList(treePath), values); 
+            addTreePath(treePath).set(values); 
         }
     }
     //Similar to previous set methods, type of treePath and values differs.
@@ -178,21 +234,20 @@ public class HashTree implements Serializable, Map {
         tree.set(values); 
     }
     
-    //Adds key into HashTree at current level
+    //Adds key into HashTree at current level, returning its subtree whether it is new or not
     public HashTree add(Object key) { 
-        if(!data.containsKey(key)) { 
-            HashTree newTree = createNewTree(); 
-            data.put(key, newTree); 
-            return newTree; 
-        }
-        else { 
-            return getTree(key); 
+        HashTree tree = getWritableTree(key); 
+        if (tree != null) { 
+            return tree; 
         }
+        HashTree newTree = createNewTree(); 
+        putNode(key, newTree); 
+        return newTree; 
     }
     
     //Adds array of objects as nodes in tree at current level
     public void add(Object[] keys) { 
-        for(int i = 0; i < keys.length(); i++) { 
+        for(int i = 0; i < keys.length; i++) { 
             add(keys[i]); 
         }
     }
@@ -209,14 +264,12 @@ public class HashTree implements Serializable, Map {
     * and all values in the array added to new node. 
     */
     public void add(Object key, Object[] values) { 
-        add(key); 
-        getTree(key).add(values); 
+        add(key).add(values); 
     }
     
     //Adds key as node at current level, then all values in the collection as nodes of new node
     public void add(Object key, Collection values) { 
-        add(key); 
-        getTree(key).add(values); 
+        add(key).add(values); 
     }
     
     /*Adds series of nodes into tree using given path. First argument is an array that represents a 
@@ -225,18 +278,18 @@ public class HashTree implements Serializable, Map {
     */ 
     public void add(Object[] treePath, Object[] values) { 
         if (treePath != null) { 
-            add(Arrays.asList(treePath), Arrays.asList(values)); 
+            addTreePath(treePath).add(values); 
         }
     }
     //Same basic idea as previous method, different types for parameters
     public void add(Object[] treePath, Collection values) { 
         if (treePath != null) { 
-            add(Arrays.asList(treePath), values); 
+            addTreePath(treePath).add(values); 
         }
     }
     
     public HashTree add(Object[] treePath,Object value) {
-        return add(Arrays.asList(treePath),value);
+        return addTreePath(treePath).add(value);
     }
     public void add(Collection treePath, Object[] values) { 
         HashTree tree = addTreePath(treePath); 
@@ -250,16 +303,49 @@ public class HashTree implements Serializable, Map {
         HashTree tree = addTreePath(treePath); 
         tree.add(values); 
     }
+    //add(key) returns the subtree for key, so each step costs a single lookup
     protected HashTree addTreePath(Collection treePath) { 
         HashTree tree = this; 
         Iterator iter = treePath.iterator(); 
         while(iter.hasNext()) { 
-            Object temp = iter.next(); 
-            tree.add(temp); 
-            tree = tree.getTree(temp); 
+            tree = tree.add(iter.next()); 
         }
         return tree; 
     }
+    //Same as previous method, walking the array by index so nothing is allocated
+    protected HashTree addTreePath(Object[] treePath) { 
+        HashTree tree = this; 
+        for (int i = 0; i < treePath.length; i++) { 
+            tree = tree.add(treePath[i]); 
+        }
+        return tree; 
+    }
+    
+    /* Returns a batch that collects path inserts and removals for this tree and applies them 
+     * in one go, looking up only the keys each path doesn't share with the one before it. 
+     */
+    public HashTreeBatch batch() { 
+        return new HashTreeBatch(this); 
+    }
+    
+    /* Removes the branch at the end of each path (an Object[] or a Collection of keys), 
+     * resolving paths that share a prefix with the previous one only once. Returns true if 
+     * anything was removed. 
+     */
+    public boolean removeAll(Collection treePaths) { 
+        HashTreeBatch batch = batch(); 
+        Iterator iter = treePaths.iterator(); 
+        while (iter.hasNext()) { 
+            Object path = iter.next(); 
+            if (path instanceof Object[]) { 
+                batch.remove((Object[]) path); 
+            }
+            else { 
+                batch.remove((Collection) path); 
+            }
+        }
+        return batch.apply() > 0; 
+    }
     
     //Gets HashTree mapped to given key
     public HashTree getTree(Object key) { 
@@ -272,17 +358,50 @@ public class HashTree implements Serializable, Map {
     }
     
     /* Gets the HashTree object mapped to the last key in the array by recursing through 
-     * the HashTree structure one key at a time.
+     * the HashTree structure one key at a time. Returns null if any key along the way is missing.
      */
-    public HashTree getTree(Object[] treePath) { 
+    public HashTree getTree(Object... treePath) { 
         if(treePath != null) { 
-            return getTree(Arrays.asList(treePath)); 
+            return getTreePath(treePath); 
         }
         else { 
             return this; 
         }
     }
     
+    /* Same as getTree(key), except that an immutable subtree grafted in by a copy-on-write 
+     * merge (see HashTreeMerge) is first swapped for a mutable node holding the same children. 
+     * add and paths written through it go this way, so writing below a grafted subtree copies 
+     * only the nodes on the path written to. 
+     */
+    HashTree getWritableTree(Object key) { 
+        HashTree tree = (HashTree) data.get(key); 
+        if (!(tree instanceof PersistentHashTree) || this instanceof PersistentHashTree) { 
+            return tree; 
+        }
+        HashTree copy = createNewTree(); 
+        Iterator iter = tree.data.entrySet().iterator(); 
+        while (iter.hasNext()) { 
+            Map.Entry entry = (Map.Entry) iter.next(); 
+            HashTree child = (HashTree) entry.getValue(); 
+            //leaves are all one shared empty tree, which must not be handed a parent
+            copy.putNode(entry.getKey(), child.data.isEmpty() ? copy.createNewTree() : child); 
+        }
+        putNode(key, copy); 
+        return copy; 
+    }
+    
+    /* Returns true if subtree can be attached under this node as it is, as HashTreeMerge does 
+     * when it grafts instead of copying. Plain HashTrees without a key index take plain and 
+     * persistent subtrees that have no index of their own; an indexed tree would have to walk 
+     * a grafted subtree to index it anyway, and other kinds of node carry state of their own 
+     * (a budget, a log, metrics, a map type per level), so by default they take copies. 
+     */
+    protected boolean canGraft(HashTree subtree) { 
+        return getClass() == HashTree.class && index == null && subtree.index == null 
+            && (subtree.getClass() == HashTree.class || subtree instanceof PersistentHashTree); 
+    }
+    
     /* Creates a new tree. This method exists to allow inheriting classes to generate the 
      * appropriate types of nodes.
      */
@@ -320,15 +439,68 @@ public class HashTree implements Serializable, Map {
     
     //Removes entire branch specified by given key. 
     public Object remove(Object key) { 
-        return data.remove(key); 
+        return removeNode(key); 
+    }
+    
+    /* Maps key to tree at current level, keeping the key index (if any), parent links and 
+     * cached digests up to date. A node reports its changes through its one parent link, so 
+     * a subtree already attached somewhere else is copied rather than shared, and each tree 
+     * sees only its own copy change. Immutable PersistentHashTree nodes may be shared by any 
+     * number of trees, so they are never given a parent; an indexed tree, which links every 
+     * node to its index, gets a mutable copy of one instead. 
+     */
+    protected void putNode(Object key, HashTree tree) { 
+        if (tree != null && ((index != null && tree instanceof PersistentHashTree) 
+                || (tree.parent != null && data.get(key) != tree))) { 
+            HashTree copy = createNewTree(); 
+            copy.add(tree); 
+            tree = copy; 
+        }
+        long oldEffective = effectiveLeaves(); 
+        HashTree previous = (HashTree) data.put(key, tree); 
+        if (previous != null && previous != tree && previous.parent == this) { 
+            previous.parent = null; 
+        }
+        if (tree != null && !(tree instanceof PersistentHashTree)) { 
+            tree.parent = this; 
+        }
+        if (previous != tree) { 
+            childrenChanged(tree, previous, oldEffective); 
+        }
+        markChanged(key); 
+        invalidateDigest(); 
+        if (index != null) { 
+            if (previous != null) { 
+                index.removeTree(key, this, previous); 
+            }
+            index.addTree(key, this, tree); 
+        }
+    }
+    
+    //Unmaps key at current level, dropping its whole branch from the key index (if any)
+    protected HashTree removeNode(Object key) { 
+        long oldEffective = effectiveLeaves(); 
+        HashTree previous = (HashTree) data.remove(key); 
+        if (previous != null && previous.parent == this) { 
+            previous.parent = null; 
+        }
+        if (previous != null) { 
+            childrenChanged(null, previous, oldEffective); 
+        }
+        markChanged(key); 
+        invalidateDigest(); 
+        if (index != null && previous != null) { 
+            index.removeTree(key, this, previous); 
+        }
+        return previous; 
     }
     
     /* Recurses down into the HashTree stucture using each subsequent key in the array of keys, 
      * and returns the Set of keys of the HashTree object at the end of the recursion. 
      */
-    public Collection list(Object[] treePath) { 
+    public Collection list(Object... treePath) { 
         if(treePath != null) { 
-            return list(Arrays.asList(treePath)); 
+            return getTreePath(treePath).list(); 
         }
         else { 
             return list(); 
@@ -340,10 +512,28 @@ public class HashTree implements Serializable, Map {
     }
     
     //Replaces current key given in params with new key specified
-    public void replace(Object currentKey, Object newKey) { 
+    public void replaceKey(Object currentKey, Object newKey) { 
+        long oldEffective = effectiveLeaves(); 
         HashTree tree = getTree(currentKey); 
         data.remove(currentKey); 
-        data.put(newKey, tree); 
+        HashTree previous = (HashTree) data.put(newKey, tree); 
+        if (previous != null && previous != tree) { 
+            if (previous.parent == this) { 
+                previous.parent = null; 
+            }
+            childrenChanged(null, previous, oldEffective); 
+        }
+        markChanged(currentKey); 
+        markChanged(newKey); 
+        invalidateDigest(); 
+        if (index != null) { 
+            //the moved branch keeps its holders, so only the renamed key changes
+            index.removeKey(currentKey, this); 
+            if (previous != null && previous != tree) { 
+                index.removeTree(newKey, this, previous); 
+            }
+            index.addKey(newKey, this); 
+        }
     }
     
     //Gets array of all keys in current HashTree node
@@ -358,9 +548,9 @@ public class HashTree implements Serializable, Map {
     /* Recurses down into the HashTree stucture using each subsequent key in the array of keys, 
      * and returns an array of keys of the HashTree object at the end of the recursion.
      */
-    public Object[] getArray(Object[] treePath) { 
+    public Object[] getArray(Object... treePath) { 
         if (treePath != null) { 
-            return getArray(Arrays.asList(treePath)); 
+            return getTreePath(treePath).getArray(); 
         }
         else { 
             return getArray(); 
@@ -382,10 +572,375 @@ public class HashTree implements Serializable, Map {
         }
         return tree; 
     }
+    //Same as previous method, walking the array by index so nothing is allocated
+    protected HashTree getTreePath(Object[] treePath) { 
+        HashTree tree = this; 
+        for (int i = 0; i < treePath.length && tree != null; i++) { 
+            tree = tree.getTree(treePath[i]); 
+        }
+        return tree; 
+    }
     
-    //Returns hashcode for this HashTree
+    /* Calls action with each key and subtree of the current level, without copying the keys 
+     * the way getArray() does. The action must not add or remove keys at this level.
+     */
+    public void forEachChild(BiConsumer<Object, HashTree> action) { 
+        data.forEach(action); 
+    }
+    
+    //Returns a reusable Cursor positioned at this tree
+    public Cursor cursor() { 
+        return new Cursor(this); 
+    }
+    
+    /* Walks up and down a tree one key at a time without allocating. The cursor remembers the 
+     * nodes it passed on the way down, so ascend() needs no lookup; its internal stack only 
+     * grows when it goes deeper than it has gone before. Not thread-safe.
+     */
+    public static class Cursor { 
+        private HashTree[] stack = new HashTree[16]; 
+        private int depth; 
+        
+        public Cursor(HashTree root) { 
+            stack[0] = root; 
+        }
+        
+        //Moves down to key's subtree and returns true, or stays put and returns false if absent
+        public boolean descend(Object key) { 
+            HashTree child = stack[depth].getTree(key); 
+            if (child == null) { 
+                return false; 
+            }
+            if (depth + 1 == stack.length) { 
+                HashTree[] bigger = new HashTree[stack.length * 2]; 
+                System.arraycopy(stack, 0, bigger, 0, stack.length); 
+                stack = bigger; 
+            }
+            stack[++depth] = child; 
+            return true; 
+        }
+        
+        //Moves back up one level; returns false if already at the root
+        public boolean ascend() { 
+            if (depth == 0) { 
+                return false; 
+            }
+            stack[depth--] = null; 
+            return true; 
+        }
+        
+        //Returns the tree the cursor is on
+        public HashTree current() { 
+            return stack[depth]; 
+        }
+        
+        //Returns how many levels below the root the cursor is
+        public int depth() { 
+            return depth; 
+        }
+        
+        //Moves back to the root
+        public void reset() { 
+            while (depth > 0) { 
+                stack[depth--] = null; 
+            }
+        }
+        
+        //Moves back to the root and re-roots the cursor at tree
+        public void reset(HashTree root) { 
+            reset(); 
+            stack[0] = root; 
+        }
+    }
+    
+    //Returns hashcode for this HashTree, taken from its cached structural digest
     public int hashCode() { 
-        return data.hashCode(); 
+        long d = digest(); 
+        return (int) (d ^ (d >>> 32)); 
+    }
+    
+    /* Returns a 64-bit structural digest of this subtree, Merkle style: a node's digest is 
+     * an order-independent sum over its children of a mix of the key's hash and the child's 
+     * digest. Digests are cached per node and a mutation only clears the cache along the 
+     * path from the changed node to the root, so after a change only that path is rehashed. 
+     * Equal trees always have equal digests.
+     */
+    protected long digest() { 
+        if (digest != 0) { 
+            return digest; 
+        }
+        if (!cachesDigest()) { 
+            return computeDigest(); 
+        }
+        //post-order over the nodes whose digest is missing, without recursion
+        ArrayDeque stack = new ArrayDeque(); 
+        stack.push(this); 
+        while (!stack.isEmpty()) { 
+            HashTree node = (HashTree) stack.peek(); 
+            boolean ready = true; 
+            Iterator iter = node.data.values().iterator(); 
+            while (iter.hasNext()) { 
+                HashTree child = (HashTree) iter.next(); 
+                if (child.digest == 0 && child.cachesDigest()) { 
+                    stack.push(child); 
+                    ready = false; 
+                }
+            }
+            if (ready) { 
+                stack.pop(); 
+                node.digest = node.computeDigest(); 
+            }
+        }
+        return digest; 
+    }
+    
+    //Digest of this node from its children's digests
+    private long computeDigest() { 
+        long sum = 0; 
+        Iterator iter = data.entrySet().iterator(); 
+        while (iter.hasNext()) { 
+            Map.Entry entry = (Map.Entry) iter.next(); 
+            sum += mix(keyHash(entry.getKey()) + 31 * ((HashTree) entry.getValue()).digest()); 
+        }
+        //0 marks a missing digest
+        return sum == 0 ? 1 : sum; 
+    }
+    
+    /* Returns true if digest() is cached on this node. Trees whose digests would go stale 
+     * without notice (concurrent or view-backed trees) return false and are hashed on demand. 
+     */
+    protected boolean cachesDigest() { 
+        return true; 
+    }
+    
+    /* Clears the cached digest of this node and of every ancestor that still has one, and 
+     * marks their snapshots out of date, telling each parent which of its children changed. 
+     * Both caches are filled bottom-up, so the first ancestor with neither cached has none 
+     * above it either, and its parent already knows it changed.
+     */
+    protected void invalidateDigest() { 
+        for (HashTree node = this; node != null && (node.digest != 0 || node.frozenCurrent); node = node.parent) { 
+            node.digest = 0; 
+            if (node.frozenCurrent) { 
+                node.frozenCurrent = false; 
+                if (node.parent != null) { 
+                    node.parent.markChanged(node.frozen.key); 
+                }
+            }
+        }
+    }
+    
+    //Notes that the child under key was added, removed or changed since the last snapshot
+    private void markChanged(Object key) { 
+        if (frozen != null) { 
+            if (frozen.changed == null) { 
+                frozen.changed = new HashSet(); 
+            }
+            frozen.changed.add(key); 
+        }
+    }
+    
+    /* What a node keeps between snapshots: its last snapshot, the key it was under when its 
+     * parent was last frozen, and the keys of its children that changed since its own snapshot. 
+     * The snapshot is held weakly, so once nothing else uses it, it is collected and the node 
+     * is frozen afresh next time. 
+     */
+    private static class Frozen { 
+        WeakReference tree; 
+        Object key; 
+        Set changed; 
+    }
+    
+    /* Returns an immutable copy of this tree that later changes to it do not affect. Every 
+     * node remembers the snapshot it was last frozen into and which of its children changed 
+     * since, and a change marks only the path up to the root, so taking another snapshot 
+     * after a few writes refreezes just the changed children along those paths and shares 
+     * every untouched subtree with the previous one; with no writes in between it returns 
+     * the same snapshot. That reuse lasts only while the previous snapshot is still held 
+     * somewhere: nodes keep their snapshots through weak references, so once every snapshot 
+     * is dropped the copies are collected and the next call freezes the tree in full. What a 
+     * node keeps for good is a small record of its last snapshot, about 50 bytes, plus the 
+     * keys of its children changed since. Trees that don't cache digests get no notice of 
+     * changes either, so they are frozen in full every time.
+     */
+    public PersistentHashTree snapshot() { 
+        PersistentHashTree current = currentSnapshot(); 
+        if (current != null) { 
+            return current; 
+        }
+        //snapshots made or reused so far, held here until their parents have picked them up
+        Map taken = new IdentityHashMap(); 
+        //each node's previous snapshot, read once so it cannot be collected halfway through
+        Map previous = new IdentityHashMap(); 
+        ArrayDeque stack = new ArrayDeque(); 
+        stack.push(this); 
+        while (!stack.isEmpty()) { 
+            HashTree node = (HashTree) stack.peek(); 
+            if (!previous.containsKey(node)) { 
+                previous.put(node, node.lastSnapshot()); 
+            }
+            PersistentHashTree last = (PersistentHashTree) previous.get(node); 
+            boolean ready = true; 
+            //a node frozen before only needs the children it was told changed
+            Iterator iter = last == null ? node.data.values().iterator() 
+                : node.frozen.changed == null ? Collections.EMPTY_SET.iterator() 
+                : node.frozen.changed.iterator(); 
+            while (iter.hasNext()) { 
+                Object next = iter.next(); 
+                HashTree child = last == null ? (HashTree) next : (HashTree) node.data.get(next); 
+                if (child == null || child instanceof PersistentHashTree || taken.containsKey(child)) { 
+                    continue; 
+                }
+                PersistentHashTree childSnapshot = child.currentSnapshot(); 
+                if (childSnapshot != null) { 
+                    taken.put(child, childSnapshot); 
+                }
+                else { 
+                    stack.push(child); 
+                    ready = false; 
+                }
+            }
+            if (!ready) { 
+                continue; 
+            }
+            stack.pop(); 
+            PersistentHashTree result = node.freeze(last, taken); 
+            taken.put(node, result); 
+            if (node.cachesDigest()) { 
+                if (node.frozen == null) { 
+                    node.frozen = new Frozen(); 
+                }
+                if (result != last) { 
+                    node.frozen.tree = new WeakReference(result); 
+                }
+                node.frozenCurrent = true; 
+            }
+        }
+        return (PersistentHashTree) taken.get(this); 
+    }
+    
+    //Returns this node's last snapshot if nothing has changed since and it is still held somewhere
+    private PersistentHashTree currentSnapshot() { 
+        return frozenCurrent ? lastSnapshot() : null; 
+    }
+    
+    //Returns this node's last snapshot, or null, dropping what it kept if the snapshot was collected
+    private PersistentHashTree lastSnapshot() { 
+        if (frozen == null) { 
+            return null; 
+        }
+        PersistentHashTree last = (PersistentHashTree) frozen.tree.get(); 
+        if (last == null) { 
+            frozen = null; 
+            frozenCurrent = false; 
+        }
+        return last; 
+    }
+    
+    /* Snapshot of this node from its children's snapshots in taken. Starts from the previous 
+     * snapshot's children when there is one, so only the children that changed are looked at 
+     * and written into it. Tells every child it freezes which key it is under. 
+     */
+    private PersistentHashTree freeze(PersistentHashTree last, Map taken) { 
+        PersistentNodeMap previous = last != null ? (PersistentNodeMap) last.data : PersistentNodeMap.EMPTY; 
+        PersistentNodeMap children = previous; 
+        Iterator iter = last == null ? data.keySet().iterator() 
+            : frozen.changed == null ? Collections.EMPTY_SET.iterator() : frozen.changed.iterator(); 
+        while (iter.hasNext()) { 
+            Object key = iter.next(); 
+            HashTree child = (HashTree) data.get(key); 
+            if (child == null) { 
+                children = children.minus(key); 
+                continue; 
+            }
+            PersistentHashTree snapshot = child instanceof PersistentHashTree ? (PersistentHashTree) child 
+                : (PersistentHashTree) taken.get(child); 
+            if (child.frozen != null) { 
+                child.frozen.key = key; 
+            }
+            children = children.plus(key, snapshot); 
+        }
+        if (last != null) { 
+            frozen.changed = null; 
+            if (children == previous) { 
+                return last; 
+            }
+        }
+        return children.isEmpty() ? PersistentHashTree.empty() : new PersistentHashTree(children); 
+    }
+    
+    /* 64-bit hash of a key. Keys that are equal must hash alike, whatever their classes (an 
+     * ArrayList and a LinkedList can be equal), so everything but Strings uses hashCode() 
+     * alone. A String only ever equals another String, so Strings can safely get a full 
+     * 64-bit hash instead, and rarely collide. 
+     */
+    private static long keyHash(Object key) { 
+        if (key == null) { 
+            return 0x9E3779B97F4A7C15L; 
+        }
+        if (key instanceof String) { 
+            String s = (String) key; 
+            //64-bit FNV-1a, so "Aa" and "BB" don't collide the way String.hashCode does
+            long h = 0xcbf29ce484222325L; 
+            for (int i = 0; i < s.length(); i++) { 
+                h = (h ^ s.charAt(i)) * 0x100000001b3L; 
+            }
+            return h; 
+        }
+        return key.hashCode(); 
+    }
+    
+    //64-bit finalizer from MurmurHash3
+    private static long mix(long h) { 
+        h ^= h >>> 33; 
+        h *= 0xff51afd7ed558ccdL; 
+        h ^= h >>> 33; 
+        h *= 0xc4ceb9fe1a85ec53L; 
+        h ^= h >>> 33; 
+        return h; 
+    }
+    
+    /* Returns the paths (each a List of keys from the top level down) of the topmost nodes that 
+     * are in this tree or in other but not both. Subtrees whose cached digests match are taken 
+     * to be identical and skipped, so comparing two snapshots that share most of their 
+     * structure only walks the parts that changed.
+     */
+    public Collection diff(HashTree other) { 
+        List result = new ArrayList(); 
+        ArrayDeque stack = new ArrayDeque(); 
+        stack.push(new Object[] { new ArrayList(), this, other }); 
+        while (!stack.isEmpty()) { 
+            Object[] frame = (Object[]) stack.pop(); 
+            List path = (List) frame[0]; 
+            HashTree a = (HashTree) frame[1]; 
+            HashTree b = (HashTree) frame[2]; 
+            if (a == b || (a.cachesDigest() && b.cachesDigest() && a.digest() == b.digest())) { 
+                continue; 
+            }
+            Iterator iter = a.data.entrySet().iterator(); 
+            while (iter.hasNext()) { 
+                Map.Entry entry = (Map.Entry) iter.next(); 
+                List childPath = new ArrayList(path); 
+                childPath.add(entry.getKey()); 
+                HashTree match = b.getTree(entry.getKey()); 
+                if (match == null) { 
+                    result.add(childPath); 
+                }
+                else { 
+                    stack.push(new Object[] { childPath, entry.getValue(), match }); 
+                }
+            }
+            iter = b.data.keySet().iterator(); 
+            while (iter.hasNext()) { 
+                Object key = iter.next(); 
+                if (!a.data.containsKey(key)) { 
+                    List childPath = new ArrayList(path); 
+                    childPath.add(key); 
+                    result.add(childPath); 
+                }
+            }
+        }
+        return result; 
     }
     
     //Returns set of all keys in top level of this HashTree.
@@ -393,121 +948,481 @@ public class HashTree implements Serializable, Map {
         return data.keySet(); 
     }
     
-    //Searches hashtree for given key
+    //Searches hashtree for given key. Uses the key index when this tree is its root, 
+    //otherwise falls back to a depth-first walk that stops at the first match.
     public HashTree search(Object key){ 
-        HashTree result = getTree(key); 
+        HashTree result = (HashTree) data.get(key); 
         if(result != null) { 
             return result; 
         }
-        TreeSearcher searcher = new TreeSearcher(key); 
-        try { 
-            traverse(searcher);
+        if (index != null && index.root == this) { 
+            return index.find(key); 
         }
-        catch(Exception e) { 
-            
+        return searchInto(key); 
+    }
+    
+    /* Returns every subtree matching pattern, a path of keys separated by '/' in which "*" 
+     * matches any one key and "**" any number of levels. See HashTreeQuery for predicates and 
+     * keys that are not Strings. 
+     */
+    public Collection select(String pattern) { 
+        return HashTreeQuery.compile(pattern).findAll(this); 
+    }
+    
+    //Returns every subtree mapped to the given key anywhere in this HashTree
+    public Collection searchAll(Object key) { 
+        if (index != null && index.root == this) { 
+            return index.findAll(key); 
+        }
+        Collection result = new ArrayList(); 
+        searchAllInto(key, result); 
+        return result; 
+    }
+    
+    //Depth-first search below the current level, stopping as soon as key is found
+    private HashTree searchInto(Object key) { 
+        TreeSearcher searcher = new TreeSearcher(key, null); 
+        traverse(searcher); 
+        return searcher.getResult(); 
+    }
+    
+    private void searchAllInto(Object key, Collection result) { 
+        HashTree found = (HashTree) data.get(key); 
+        if (found != null) { 
+            result.add(found); 
+        }
+        traverse(new TreeSearcher(key, result)); 
+    }
+    
+    /* Builds a key index over this tree so search and searchAll no longer walk it. 
+     * add, set, remove, replaceKey and clear keep the index up to date from then on. 
+     * Changes made directly through entrySet(), keySet() or values() bypass it. Immutable 
+     * subtrees grafted in by a copy-on-write merge are replaced by mutable copies first. 
+     */
+    public void buildIndex() { 
+        thawAll(); 
+        HashTreeIndex newIndex = new HashTreeIndex(this); 
+        index = newIndex; 
+        Iterator iter = data.entrySet().iterator(); 
+        while (iter.hasNext()) { 
+            Map.Entry entry = (Map.Entry) iter.next(); 
+            newIndex.addTree(entry.getKey(), this, (HashTree) entry.getValue()); 
+        }
+    }
+    
+    //Swaps every PersistentHashTree below this node for mutable nodes, so each node can be indexed
+    private void thawAll() { 
+        ArrayDeque stack = new ArrayDeque(); 
+        stack.push(this); 
+        while (!stack.isEmpty()) { 
+            HashTree node = (HashTree) stack.pop(); 
+            List shared = null; 
+            Iterator iter = node.data.entrySet().iterator(); 
+            while (iter.hasNext()) { 
+                Map.Entry entry = (Map.Entry) iter.next(); 
+                HashTree child = (HashTree) entry.getValue(); 
+                if (child instanceof PersistentHashTree) { 
+                    if (shared == null) { 
+                        shared = new ArrayList(); 
+                    }
+                    shared.add(entry.getKey()); 
+                }
+                else if (child != null && !child.data.isEmpty()) { 
+                    stack.push(child); 
+                }
+            }
+            //thawed once the walk over node's map is done; each copy's children are thawed in turn
+            for (int i = 0; shared != null && i < shared.size(); i++) { 
+                stack.push(node.getWritableTree(shared.get(i))); 
+            }
         }
-        return searcher.getResult();
+    }
+    
+    //Drops the key index; searches go back to walking the tree
+    public void dropIndex() { 
+        if (index != null && index.root == this) { 
+            HashTreeIndex old = index; 
+            Iterator iter = data.entrySet().iterator(); 
+            while (iter.hasNext()) { 
+                Map.Entry entry = (Map.Entry) iter.next(); 
+                old.removeTree(entry.getKey(), this, (HashTree) entry.getValue()); 
+            }
+            index = null; 
+        }
+    }
+    
+    //Returns true if search on this tree is answered from a key index
+    public boolean isIndexed() { 
+        return index != null && index.root == this; 
     }
     
     //Compares all objects in the tree and verifies that the two trees contain the same objects 
     //at the same tree levels. Returns true if they do, false otherwise.
+    //Trees with different cached digests are rejected without walking them.
     public boolean equals(Object o) { 
         if(!(o instanceof HashTree)) 
             return false; 
         
         HashTree oo = (HashTree) o; 
+        if (oo == this) 
+            return true; 
         if(oo.size() != this.size())
             return false; 
+        if (cachesDigest() && oo.cachesDigest() && digest() != oo.digest()) 
+            return false; 
         return data.equals(oo.data); 
     }
     
-    // Used to read objects into program
-    void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException { 
+    // Used to read objects into program; restores the parent links, which are not written
+    private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException { 
         ois.defaultReadObject();
+        Iterator iter = data.values().iterator(); 
+        while (iter.hasNext()) { 
+            HashTree child = (HashTree) iter.next(); 
+            if (child != null) { 
+                child.parent = this; 
+                //children are read in full first, so their counts are already set
+                below += child.below + 1; 
+                leaves += child.data.isEmpty() ? 1 : child.leaves; 
+                height = Math.max(height, child.height + 1); 
+            }
+        }
     }
     //File writing method
-    void writeObject(ObjectOutputStream oos) throws IOException { 
+    private void writeObject(ObjectOutputStream oos) throws IOException { 
         oos.defaultWriteObject(); 
     }
+    /* Writes the tree to out in a compact binary format: a dictionary of distinct keys 
+     * followed by one small record per non-leaf node, with a CRC32 checksum at the end. 
+     * Much smaller and faster than default serialization. out is flushed but not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException { 
+        HashTreeCodec.write(this, out, true); 
+    }
+    
+    //Same as previous method; checksum controls whether the CRC32 trailer is written
+    public void writeTo(OutputStream out, boolean checksum) throws IOException { 
+        HashTreeCodec.write(this, out, checksum); 
+    }
+    
+    //Same as previous method, writing to a channel
+    public void writeTo(WritableByteChannel channel) throws IOException { 
+        HashTreeCodec.write(this, Channels.newOutputStream(channel), true); 
+    }
+    
+    /* Writes the tree to out as readable text or JSON, streaming it through a small fixed 
+     * buffer instead of building the whole string first, so dumping a large tree takes no 
+     * more memory than a small one. out is flushed if it is a Writer, but not closed.
+     */
+    public void writeTo(Appendable out, Format format) throws IOException { 
+        HashTreeExport.write(this, out, format); 
+    }
+    
+    //Output formats for writeTo(Appendable, Format)
+    public enum Format { 
+        //one key per line, indented two spaces per level
+        TEXT, 
+        //nested objects keyed by each key's toString, with {} for a leaf
+        JSON 
+    }
+    
+    /* Replaces the contents of this tree with a tree read from in, as written by writeTo. 
+     * The checksum is verified when present, and the tree is left unchanged if the stream 
+     * is damaged. Reading stops at the end of the tree, so in can carry more data after it; 
+     * in is not closed. Keys stored with Java serialization must be allowed first, see 
+     * allowKeyClass. 
+     */
+    public void readFrom(InputStream in) throws IOException { 
+        HashTreeCodec.read(this, in); 
+    }
+    
+    //Same as previous method, reading from a channel
+    public void readFrom(ReadableByteChannel channel) throws IOException { 
+        readFrom(Channels.newInputStream(channel)); 
+    }
+    
+    /* Allows readFrom, MappedHashTree.open and HashTreeLog recovery to read back keys of 
+     * keyClass. Keys that are not a String, boxed primitive, BigInteger or BigDecimal are 
+     * stored with Java serialization, and are only deserialized when every class in them has 
+     * been allowed, so a crafted stream cannot make the reader instantiate arbitrary classes. 
+     * Allow every class a key's serialized form contains, such as the types of its fields. 
+     */
+    public static void allowKeyClass(Class keyClass) { 
+        HashTreeCodec.allow(keyClass); 
+    }
+    
     //Returns number of top level entries in the HashTree. 
     public int size() { 
         return data.size(); 
     }
-    //Allows any implementation of HashTreeTraverser interface to easily traverse (depth-first)
-    //all the nodes of the HashTree
-    public void traverse(HashTreeTraverser visitor) { 
-        Iterator iter = list().iterator(); 
-        while (iter.hasNext()) { 
-            Object item = iter.next(); 
-            visitor.addNode(item, getTree(item)); 
-            getTree(item).traverseInto(visitor); 
+    
+    /* Returns the number of nodes at every level of this tree. Kept up to date by add, set, 
+     * remove, replaceKey and clear, so this and leafCount() and height() take constant time. 
+     * Trees that don't track their counts (see tracksStats) walk themselves instead. 
+     */
+    public long totalSize() { 
+        if (!tracksStats()) { 
+            return walkStats()[0]; 
         }
+        return below; 
     }
-    //Recursive method that accomplishes tree traversal
-    private void traverseInto(HashTreeTraverser visitor){ 
-        if (list().size() == 0) { 
-            visitor.processPath(); 
+    
+    //Returns the number of nodes with no children; 0 for an empty tree
+    public long leafCount() { 
+        if (!tracksStats()) { 
+            return walkStats()[1]; 
         }
-        else { 
-            Iterator iter = list().iterator();
-            while(iter.hasNext()) { 
-                Object item = iter.next(); 
-                visitor.addNode(item, getTree(item)); 
-                getTree(item).traverseInto(visitor);
+        return leaves; 
+    }
+    
+    //Returns the number of levels of nodes below this tree, 0 if it is empty
+    public int height() { 
+        if (!tracksStats()) { 
+            return (int) walkStats()[2]; 
+        }
+        return height; 
+    }
+    
+    /* Returns true if this node keeps its counts current as it changes. Trees changed without 
+     * going through putNode, removeNode, clear and replaceKey (concurrent or view-backed trees) 
+     * return false and count themselves on demand. Counts travel up the one parent link each 
+     * node has, which is why putNode copies a subtree that is already attached elsewhere; 
+     * changes made directly through entrySet(), keySet() or values() are not counted. 
+     */
+    protected boolean tracksStats() { 
+        return true; 
+    }
+    
+    //Counts this tree's nodes, leaves and levels by walking it, using the counts of subtrees that track them
+    private long[] walkStats() { 
+        long[] stats = new long[3]; 
+        ArrayDeque stack = new ArrayDeque(); 
+        stack.push(new Object[] { this, Integer.valueOf(0) }); 
+        while (!stack.isEmpty()) { 
+            Object[] frame = (Object[]) stack.pop(); 
+            HashTree node = (HashTree) frame[0]; 
+            int depth = ((Integer) frame[1]).intValue() + 1; 
+            Iterator iter = node.data.values().iterator(); 
+            while (iter.hasNext()) { 
+                HashTree child = (HashTree) iter.next(); 
+                stats[0]++; 
+                if (child == null || child.data.isEmpty()) { 
+                    stats[1]++; 
+                    stats[2] = Math.max(stats[2], depth); 
+                }
+                else if (child.tracksStats()) { 
+                    stats[0] += child.below; 
+                    stats[1] += child.leaves; 
+                    stats[2] = Math.max(stats[2], depth + child.height); 
+                }
+                else { 
+                    stack.push(new Object[] { child, Integer.valueOf(depth) }); 
+                }
             }
         }
-        visitor.subtractNode(); 
+        return stats; 
     }
-    public String toString(){ 
-        ConvertToString c = new ConvertToString(); 
-        traverse(c); 
-        return c.toString(); 
-    }
-    private class ConvertToString implements HashTreeTraverser { 
-        StringBuffer string = new StringBuffer(getClass().getName() + "{"); 
-        StringBuffer spaces = new StringBuffer(); 
-        int depth = 0; 
+    
+    //Leaves this node counts as in its parent's counts: itself if it has no children
+    private long effectiveLeaves() { 
+        return data.isEmpty() ? 1 : leaves; 
+    }
+    
+    /* Updates this node's counts after added was attached and removed detached (either may be 
+     * null), then passes the change on to its ancestors. 
+     */
+    private void childrenChanged(HashTree added, HashTree removed, long oldEffective) { 
+        long oldBelow = below; 
+        int oldHeight = height; 
+        if (added != null) { 
+            below += added.totalSize() + 1; 
+            leaves += added.data.isEmpty() ? 1 : added.leafCount(); 
+            height = Math.max(height, added.height() + 1); 
+        }
+        if (removed != null) { 
+            below -= removed.totalSize() + 1; 
+            leaves -= removed.data.isEmpty() ? 1 : removed.leafCount(); 
+            if (removed.height() + 1 >= oldHeight) { 
+                height = maxChildHeight(); 
+            }
+        }
+        propagateStats(below - oldBelow, oldEffective, oldHeight); 
+    }
+    
+    /* Passes a change in this node's counts on to its ancestors, stopping at the first one 
+     * left unchanged. oldEffective and oldHeight are this node's before the change. 
+     */
+    private void propagateStats(long deltaBelow, long oldEffective, int oldHeight) { 
+        long deltaLeaves = effectiveLeaves() - oldEffective; 
+        HashTree child = this; 
+        int childOldHeight = oldHeight; 
+        for (HashTree node = parent; node != null; node = node.parent) { 
+            if (deltaBelow == 0 && deltaLeaves == 0 && child.height == childOldHeight) { 
+                return; 
+            }
+            int nodeOldHeight = node.height; 
+            node.below += deltaBelow; 
+            //node still has child, so its leaves change exactly as child's do
+            node.leaves += deltaLeaves; 
+            if (child.height + 1 > node.height) { 
+                node.height = child.height + 1; 
+            }
+            else if (child.height < childOldHeight && childOldHeight + 1 == node.height) { 
+                node.height = node.maxChildHeight(); 
+            }
+            child = node; 
+            childOldHeight = nodeOldHeight; 
+        }
+    }
+    
+    //Height from the children's heights, for when the tallest child got shorter or went away
+    private int maxChildHeight() { 
+        int max = 0; 
+        Iterator iter = data.values().iterator(); 
+        while (iter.hasNext()) { 
+            HashTree child = (HashTree) iter.next(); 
+            if (child != null) { 
+                max = Math.max(max, child.height() + 1); 
+            }
+        }
+        return max; 
+    }
+    /* Allows any implementation of HashTreeTraverser interface to easily traverse (depth-first) 
+     * all the nodes of the HashTree. Walks with an explicit stack of entry iterators rather than 
+     * recursing per level, so deep paths cannot overflow the thread stack and each child is 
+     * reached through its map entry without a second getTree lookup. Callbacks come in the same 
+     * order as always: addNode for a node, then its subtree (processPath at a leaf), then 
+     * subtractNode.
+     */
+    public void traverse(HashTreeTraverser visitor) { 
+        ArrayDeque stack = new ArrayDeque(); 
+        stack.push(data.entrySet().iterator()); 
+        while (!stack.isEmpty()) { 
+            Iterator iter = (Iterator) stack.peek(); 
+            if (!iter.hasNext()) { 
+                stack.pop(); 
+                //the top level has no node of its own to subtract
+                if (!stack.isEmpty()) { 
+                    visitor.subtractNode(); 
+                }
+                continue; 
+            }
+            Map.Entry entry = (Map.Entry) iter.next(); 
+            HashTree child = (HashTree) entry.getValue(); 
+            HashTreeTraverser.TraversalControl control = visitor.visitNode(entry.getKey(), child); 
+            if (control == HashTreeTraverser.TraversalControl.STOP) { 
+                return; 
+            }
+            if (control == HashTreeTraverser.TraversalControl.SKIP_SUBTREE) { 
+                visitor.subtractNode(); 
+            }
+            else if (child.data.isEmpty()) { 
+                visitor.processPath(); 
+                visitor.subtractNode(); 
+            }
+            else { 
+                stack.push(child.data.entrySet().iterator()); 
+            }
+        }
+    }
+    /* Returns a lazy stream of every root-to-leaf path in the tree, each as a List of keys. 
+     * Paths are produced one at a time as the stream is consumed, and .parallel() splits the 
+     * work on subtree boundaries. The tree must not be changed while the stream is in use.
+     */
+    public Stream<List> paths() { 
+        return StreamSupport.stream(new HashTreeSpliterator(HashTreeSpliterator.PATHS, this), false); 
+    }
+    
+    //Returns a lazy stream of every node in the tree with its depth (top level is depth 1)
+    public Stream<Node> nodes() { 
+        return StreamSupport.stream(new HashTreeSpliterator(HashTreeSpliterator.NODES, this), false); 
+    }
+    
+    //A node handed out by nodes(): its key, the subtree under it, and its depth
+    public static class Node { 
+        private final Object key; 
+        private final HashTree tree; 
+        private final int depth; 
         
-        public void addNode(Object key, HashTree tree) { 
-            depth++; 
-            string.append("\n" + getSpaces() + key ); 
+        public Node(Object key, HashTree tree, int depth) { 
+            this.key = key; 
+            this.tree = tree; 
+            this.depth = depth; 
+        }
+        public Object getKey() { 
+            return key; 
         }
-        public void subtractNode() { 
-            string.append("\n" + getSpaces()); 
+        public HashTree getTree() { 
+            return tree; 
         }
-        public void processPath(){ 
+        public int getDepth() { 
+            return depth; 
         }
         public String toString() { 
-            string.append("}"); 
-            return string.toString();
-        }
-        private String getSpaces() { 
-//            if (spaces.length() < depth) { 
-//                while(spaces.length() < depth) { 
-//                    spaces.append(" ");
-//                }
-//            }
-//            else if (spaces.length() > depth) { 
-//                spaces.setLength(depth); 
-//            }
-            return spaces.toString(); 
-        }
-    }
-    private class TreeSearcher implements HashTreeTraverser { 
+            return depth + ":" + key; 
+        }
+    }
+    
+    /* Traverses the tree like traverse(), but splits the work across a ForkJoinPool on subtree 
+     * boundaries. Each worker thread walks its subtrees with its own copy of the visitor from 
+     * fork(), and the copies are merged back so visitor holds the combined result when this 
+     * returns. Callback order within a subtree is the same as traverse(); order across subtrees 
+     * is not. STOP ends the worker that returned it and keeps queued subtrees from starting. 
+     * The tree must not be changed while the traversal runs, unless it is a ConcurrentHashTree.
+     */
+    public void parallelTraverse(MergeableHashTreeTraverser visitor) { 
+        parallelTraverse(visitor, ForkJoinPool.commonPool()); 
+    }
+    
+    //Same as previous method, running on the given pool
+    public void parallelTraverse(MergeableHashTreeTraverser visitor, ForkJoinPool pool) { 
+        new ParallelTraversal().run(this, visitor, pool); 
+    }
+    
+    //Returns the class name and the tree's keys in the indented TEXT format, between braces
+    public String toString(){ 
+        StringBuilder string = new StringBuilder(getClass().getName()).append('{'); 
+        HashTreeExport export = new HashTreeExport(string); 
+        try { 
+            export.text(this, 0); 
+            export.flush(); 
+        }
+        catch (IOException e) { 
+            //a StringBuilder does not throw
+            throw new IllegalStateException(e); 
+        }
+        return string.append('}').toString(); 
+    }
+    //Looks for target below each visited node. Stops at the first match unless it is 
+    //collecting every match into all. Counts the nodes it visited.
+    static class TreeSearcher implements HashTreeTraverser { 
         Object target; 
         HashTree result; 
+        Collection all; 
+        long visited; 
         
-        public TreeSearcher(Object t) { 
+        public TreeSearcher(Object t, Collection all) { 
             target = t; 
+            this.all = all; 
         }
         public HashTree getResult() { 
             return result; 
         }
-        public void addNode(Object node, HashTree tree) { 
-            result = tree.getTree(target); 
-            if(result != null) {
-                throw new RunTimeException("found"); 
+        public TraversalControl visitNode(Object node, HashTree tree) { 
+            visited++; 
+            //straight from the map, so subclasses that count lookups don't count a search's probes
+            result = (HashTree) tree.data.get(target); 
+            if (result == null) { 
+                return TraversalControl.CONTINUE; 
+            }
+            if (all == null) { 
+                return TraversalControl.STOP; 
             }
+            all.add(result); 
+            return TraversalControl.CONTINUE; 
+        }
+        public void addNode(Object node, HashTree tree) { 
+            visitNode(node, tree); 
         }
         public void processPath() { 
             
@@ -566,6 +1481,26 @@ public class HashTree implements Serializable, Map {
         
         System.out.println(tree2); 
         
+        //Box-score JSON files or directories of them given on the command line are loaded too
+        for (int i = 0; i < args.length; i++) { 
+            try { 
+                File file = new File(args[i]); 
+                HashTree games = new HashTree(); 
+                if (file.isDirectory()) { 
+                    BoxScoreLoader.loadDirectory(games, file); 
+                }
+                else { 
+                    BoxScoreLoader.load(games, file); 
+                }
+                System.out.println(games); 
+            }
+            catch (IOException e) { 
+                System.out.println("Could not read " + args[i] + ": " + e.getMessage()); 
+            }
+            catch (ParseException e) { 
+                System.out.println("Could not parse " + args[i] + ": " + e); 
+            }
+        }
    
     }
     
@@ -0,0 +1,140 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Collects many path inserts and removals for one HashTree and applies them together. Get one
+ * from HashTree.batch(). apply() runs the changes in the order they were given, but keeps the
+ * nodes it resolved for the previous path, so each change only looks up the keys past the
+ * prefix it shares with the one before it. Adding a whole game player by player costs one
+ * lookup per player and stat instead of a walk from the root for each.
+ *
+ * The changes are not reordered: nodes that keep their children in insertion order would come
+ * out in a different order, and a removal must not overtake the inserts given before it. So
+ * the saving depends on changes to the same branch being given next to each other, which is
+ * how a loader walking a document produces them anyway. The arrays and collections handed in
+ * are kept, not copied, until apply().
+ */
+import java.util.ArrayList;
+import java.util.Collection;
+
+public class HashTreeBatch {
+    //marks a removal in values
+    private static final Object REMOVE = new Object();
+
+    private final HashTree tree;
+    private final ArrayList paths = new ArrayList();
+    //for each path: the values to add at its end (Collection, Object[] or null), or REMOVE
+    private final ArrayList values = new ArrayList();
+
+    HashTreeBatch(HashTree tree) {
+        this.tree = tree;
+    }
+
+    //Adds treePath to the tree when applied, creating any missing nodes
+    public HashTreeBatch add(Object[] treePath) {
+        return queue(treePath, null);
+    }
+
+    public HashTreeBatch add(Collection treePath) {
+        return queue(treePath.toArray(), null);
+    }
+
+    //Adds treePath, then every value as a node at its end
+    public HashTreeBatch add(Object[] treePath, Object[] values) {
+        return queue(treePath, values);
+    }
+
+    public HashTreeBatch add(Object[] treePath, Collection values) {
+        return queue(treePath, values);
+    }
+
+    public HashTreeBatch add(Collection treePath, Object[] values) {
+        return queue(treePath.toArray(), values);
+    }
+
+    public HashTreeBatch add(Collection treePath, Collection values) {
+        return queue(treePath.toArray(), values);
+    }
+
+    //Removes the branch at the end of treePath when applied; does nothing if it is absent
+    public HashTreeBatch remove(Object[] treePath) {
+        return queue(treePath, REMOVE);
+    }
+
+    public HashTreeBatch remove(Collection treePath) {
+        return queue(treePath.toArray(), REMOVE);
+    }
+
+    //Returns how many changes are waiting to be applied
+    public int size() {
+        return paths.size();
+    }
+
+    /* Applies the queued changes to the tree in order and empties the batch. Returns how many
+     * branches the removals took out. Nothing else may change the tree while this runs, unless
+     * it is a ConcurrentHashTree.
+     */
+    public int apply() {
+        //nodes[i] is the node reached after the first i keys of previous; resolved counts them
+        HashTree[] nodes = new HashTree[16];
+        nodes[0] = tree;
+        Object[] previous = null;
+        int resolved = 0;
+        int removed = 0;
+        for (int n = 0; n < paths.size(); n++) {
+            Object[] path = (Object[]) paths.get(n);
+            Object value = values.get(n);
+            if (path.length >= nodes.length) {
+                HashTree[] bigger = new HashTree[Math.max(nodes.length * 2, path.length + 1)];
+                System.arraycopy(nodes, 0, bigger, 0, resolved + 1);
+                nodes = bigger;
+            }
+            //a removal only needs the parent of its last key
+            int end = value == REMOVE ? path.length - 1 : path.length;
+            int depth = shared(previous, path, nodes, Math.min(resolved, end));
+            while (depth < end) {
+                HashTree next = value == REMOVE ? nodes[depth].getWritableTree(path[depth]) : nodes[depth].add(path[depth]);
+                if (next == null) {
+                    break;
+                }
+                nodes[++depth] = next;
+            }
+            resolved = depth;
+            previous = path;
+            if (value == REMOVE) {
+                if (depth == end && end >= 0 && nodes[depth].remove(path[end]) != null) {
+                    removed++;
+                }
+            }
+            else if (value instanceof Collection) {
+                nodes[depth].add((Collection) value);
+            }
+            else if (value != null) {
+                nodes[depth].add((Object[]) value);
+            }
+        }
+        paths.clear();
+        values.clear();
+        return removed;
+    }
+
+    /* Returns how many leading keys path shares with previous whose nodes are still attached
+     * where they were found; a node that was removed or evicted since then stops the match.
+     */
+    private static int shared(Object[] previous, Object[] path, HashTree[] nodes, int limit) {
+        int depth = 0;
+        while (depth < limit && nodes[depth + 1].parent == nodes[depth]) {
+            Object a = previous[depth];
+            Object b = path[depth];
+            if (a != b && (a == null || !a.equals(b))) {
+                break;
+            }
+            depth++;
+        }
+        return depth;
+    }
+
+    private HashTreeBatch queue(Object[] treePath, Object value) {
+        paths.add(treePath);
+        values.add(value);
+        return this;
+    }
+}
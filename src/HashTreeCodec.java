@@ -0,0 +1,775 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Compact binary format used by HashTree.writeTo and HashTree.readFrom.
+ *
+ *   header      'H' 'T' 'R' 'B', version byte, flags byte (bit 0: CRC32 trailer present)
+ *   dictionary  varint key count, then every distinct key once (tag byte + payload)
+ *   records     varint record count, then one record per non-leaf node in post-order:
+ *                 varint child count, byte key id width, byte delta width, then per child,
+ *                 sorted by key id: key id and delta, big-endian in that many bytes each
+ *               delta is this record's offset minus the child's record offset, or 0 when
+ *               the child is a leaf, so leaves take no record of their own; each width is the
+ *               fewest bytes (at least one) that hold the record's largest key id or delta
+ *   trailer     8-byte offset of the root record, then the CRC32 of everything before it
+ *
+ * Repeated keys such as "0 pts" are written once and referred to by id. Because children are
+ * written before their parent, the writer needs no look-ahead, the reader rebuilds the tree
+ * with a stack, and a reader holding the whole file can jump from any record straight to a
+ * child's record without decoding anything in between. Since every child in a record takes
+ * the same number of bytes, such a reader finds a key in a record by binary search over the
+ * key ids (see MappedHashTree). Version 1 streams, whose records held a varint key id and
+ * delta per child in no particular order, are still read.
+ *
+ * read() never consumes a byte past the end of the tree, so more data can follow it on the
+ * same stream, and changes its target only once the whole tree, checksum included, has been
+ * read. A damaged stream, whatever the damage, fails with an IOException (StreamCorruptedException
+ * or EOFException) and never makes the reader allocate more than the bytes it has actually read
+ * can justify. Keys of other types are written with Java serialization, and read back only if every
+ * class in them is on an allow-list (see HashTree.allowKeyClass).
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+class HashTreeCodec {
+    static final byte[] MAGIC = { 'H', 'T', 'R', 'B' };
+    static final int VERSION = 2;
+    //oldest version read; its records have varint fields in place of widths
+    static final int MIN_VERSION = 1;
+    static final int FLAG_CHECKSUM = 1;
+    //bytes in the trailer after the records, not counting the checksum
+    static final int TRAILER_LENGTH = 8;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_STRING = 1;
+    static final int TAG_INTEGER = 2;
+    static final int TAG_LONG = 3;
+    static final int TAG_DOUBLE = 4;
+    static final int TAG_TRUE = 5;
+    static final int TAG_FALSE = 6;
+    static final int TAG_CHARACTER = 7;
+    static final int TAG_FLOAT = 8;
+    static final int TAG_SERIALIZED = 9;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    //largest array made up front from a length read off the stream; longer ones grow as bytes arrive
+    private static final int ALLOCATION_STEP = 1 << 12;
+
+    //names of the classes a serialized key may contain; see allow
+    private static final Set allowedClasses = Collections.newSetFromMap(new ConcurrentHashMap());
+    static {
+        Class[] defaults = { String.class, Number.class, Integer.class, Long.class, Short.class,
+            Byte.class, Double.class, Float.class, Boolean.class, Character.class,
+            BigInteger.class, BigDecimal.class, Enum.class };
+        for (int i = 0; i < defaults.length; i++) {
+            allowedClasses.add(defaults[i].getName());
+        }
+    }
+
+    //Writes tree to out in the binary format, with a CRC32 trailer if checksum is set
+    static void write(HashTree tree, OutputStream out, boolean checksum) throws IOException {
+        write(tree, out, checksum, BUFFER_SIZE);
+    }
+
+    //Same as previous method with a smaller buffer, for writing many small trees
+    static void write(HashTree tree, OutputStream out, boolean checksum, int bufferSize) throws IOException {
+        //first pass: number the distinct keys and count the records to come
+        HashMap ids = new HashMap();
+        ArrayList keys = new ArrayList();
+        int records = 1;
+        ArrayDeque pending = new ArrayDeque();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            HashTree node = (HashTree) pending.pop();
+            Iterator iter = node.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                if (!ids.containsKey(entry.getKey())) {
+                    ids.put(entry.getKey(), Integer.valueOf(keys.size()));
+                    keys.add(entry.getKey());
+                }
+                HashTree child = (HashTree) entry.getValue();
+                if (!child.data.isEmpty()) {
+                    records++;
+                    pending.push(child);
+                }
+            }
+        }
+
+        Out o = new Out(out, checksum, bufferSize);
+        o.writeBytes(MAGIC);
+        o.writeByte(VERSION);
+        o.writeByte(checksum ? FLAG_CHECKSUM : 0);
+        o.writeVarint(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            writeKey(o, keys.get(i));
+        }
+        o.writeVarint(records);
+
+        /* second pass: records in post-order, so each child's offset is known before its parent;
+         * children are visited in key id order, which is the order their parent lists them in
+         */
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new Frame(tree, ids));
+        long rootOffset = 0;
+        while (!stack.isEmpty()) {
+            Frame frame = (Frame) stack.peek();
+            if (frame.hasNext()) {
+                HashTree child = (HashTree) frame.next().getValue();
+                if (child.data.isEmpty()) {
+                    frame.add(-1);
+                }
+                else {
+                    stack.push(new Frame(child, ids));
+                }
+                continue;
+            }
+            stack.pop();
+            long offset = o.position();
+            frame.write(o, offset);
+            if (stack.isEmpty()) {
+                rootOffset = offset;
+            }
+            else {
+                ((Frame) stack.peek()).add(offset);
+            }
+        }
+        o.writeLong(rootOffset);
+        o.finish();
+    }
+
+    /* Reads a tree written by write() and makes its top-level nodes the only children of
+     * target. Nodes are created with target's createNewTree() so subclasses get their own node
+     * type. Stops at the last byte of the tree; if the stream is cut short or fails its
+     * checksum, an IOException is thrown and target is left as it was.
+     */
+    static void read(HashTree target, InputStream input) throws IOException {
+        read(target, input, BUFFER_SIZE);
+    }
+
+    //Same as previous method with a smaller buffer, for reading many small trees
+    static void read(HashTree target, InputStream input, int bufferSize) throws IOException {
+        In in = new In(input, bufferSize, true);
+        Header header = readHeader(in);
+        Object[] keys = header.keys;
+        int records = header.records;
+        int trailer = TRAILER_LENGTH + (header.checksum ? 4 : 0);
+        //the root's children, kept apart from target until the checksum has been verified
+        Object[] rootKeys = null;
+        HashTree[] rootChildren = null;
+
+        //completed subtrees waiting for their parent record, most recent on top
+        ArrayDeque done = new ArrayDeque();
+        int[] childIds = new int[16];
+        boolean[] leaf = new boolean[16];
+        for (int r = 0; r < records; r++) {
+            //every record left takes at least a byte, and the trailer follows them
+            in.expect(records - r + trailer);
+            int count = readLength(in, "child count");
+            //version 1 fields are varints, which take at least a byte each
+            int idWidth = 0;
+            int deltaWidth = 0;
+            if (header.version > 1) {
+                in.expect(2 + records - r - 1 + trailer);
+                idWidth = readWidth(in);
+                deltaWidth = readWidth(in);
+            }
+            in.expect((long) Math.max(idWidth + deltaWidth, 2) * count + records - r - 1 + trailer);
+            int withRecords = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == childIds.length) {
+                    childIds = Arrays.copyOf(childIds, (int) Math.min(count, 2L * i));
+                    leaf = Arrays.copyOf(leaf, childIds.length);
+                }
+                long id = in.readField(idWidth);
+                if (id < 0 || id >= keys.length) {
+                    throw new StreamCorruptedException("HashTree record refers to key " + id
+                        + " of " + keys.length);
+                }
+                childIds[i] = (int) id;
+                if (idWidth > 0 && i > 0 && childIds[i] <= childIds[i - 1]) {
+                    throw new StreamCorruptedException("HashTree record's children are not sorted by key id.");
+                }
+                leaf[i] = in.readField(deltaWidth) == 0;
+                if (!leaf[i]) {
+                    withRecords++;
+                }
+            }
+            if (done.size() < withRecords) {
+                throw new StreamCorruptedException("HashTree record has " + withRecords
+                    + " children with records, but only " + done.size() + " are complete.");
+            }
+            //the children with records are the last withRecords subtrees completed, in order
+            HashTree[] children = new HashTree[withRecords];
+            for (int i = withRecords - 1; i >= 0; i--) {
+                children[i] = (HashTree) done.pop();
+            }
+            if (r == records - 1) {
+                if (!done.isEmpty()) {
+                    throw new StreamCorruptedException("HashTree stream has " + done.size()
+                        + " records outside the tree.");
+                }
+                rootKeys = new Object[count];
+                rootChildren = new HashTree[count];
+                for (int i = 0, c = 0; i < count; i++) {
+                    rootKeys[i] = keys[childIds[i]];
+                    rootChildren[i] = leaf[i] ? target.createNewTree() : children[c++];
+                }
+                break;
+            }
+            HashTree node = target.createNewTree();
+            for (int i = 0, c = 0; i < count; i++) {
+                node.putNode(keys[childIds[i]], leaf[i] ? target.createNewTree() : children[c++]);
+            }
+            done.push(node);
+        }
+        in.readLong();
+        long computed = in.crc();
+        if (header.checksum && (in.readInt() & 0xffffffffL) != computed) {
+            throw new StreamCorruptedException("HashTree stream checksum mismatch.");
+        }
+        if (rootKeys == null) {
+            throw new StreamCorruptedException("HashTree stream has no root record.");
+        }
+        if (!target.data.isEmpty()) {
+            target.clear();
+        }
+        for (int i = 0; i < rootKeys.length; i++) {
+            target.putNode(rootKeys[i], rootChildren[i]);
+        }
+    }
+
+    //Reads everything up to the first record: magic, version, flags, dictionary, record count
+    static Header readHeader(In in) throws IOException {
+        in.expect(MAGIC.length + 2);
+        byte[] magic = new byte[MAGIC.length];
+        in.readBytes(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new StreamCorruptedException("Not a HashTree binary stream.");
+            }
+        }
+        int version = in.readByte();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new StreamCorruptedException("Unsupported HashTree format version " + version);
+        }
+        Header header = new Header();
+        header.version = version;
+        header.checksum = (in.readByte() & FLAG_CHECKSUM) != 0;
+        int trailer = TRAILER_LENGTH + (header.checksum ? 4 : 0);
+        //key count, record count, the root record's child count and the trailer
+        in.expect(3 + trailer);
+        int count = readLength(in, "key count");
+        header.keys = new Object[Math.min(count, ALLOCATION_STEP)];
+        for (int i = 0; i < count; i++) {
+            //a tag byte for each key left, then the record count, root record and trailer
+            in.expect((long) count - i + 2 + trailer);
+            if (i == header.keys.length) {
+                header.keys = Arrays.copyOf(header.keys, (int) Math.min(count, 2L * i));
+            }
+            header.keys[i] = readKey(in);
+        }
+        header.records = readLength(in, "record count");
+        header.recordsStart = in.position();
+        return header;
+    }
+
+    //What readHeader found at the start of a stream
+    static class Header {
+        int version;
+        boolean checksum;
+        Object[] keys;
+        int records;
+        //offset of the first record from the start of the stream
+        long recordsStart;
+    }
+
+    static void writeKey(Out o, Object key) throws IOException {
+        if (key == null) {
+            o.writeByte(TAG_NULL);
+        }
+        else if (key instanceof String) {
+            byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+            o.writeByte(TAG_STRING);
+            o.writeVarint(bytes.length);
+            o.writeBytes(bytes);
+        }
+        else if (key instanceof Integer) {
+            o.writeByte(TAG_INTEGER);
+            o.writeVarlong(zigzag(((Integer) key).intValue()));
+        }
+        else if (key instanceof Long) {
+            o.writeByte(TAG_LONG);
+            o.writeVarlong(zigzag(((Long) key).longValue()));
+        }
+        else if (key instanceof Double) {
+            o.writeByte(TAG_DOUBLE);
+            o.writeLong(Double.doubleToLongBits(((Double) key).doubleValue()));
+        }
+        else if (key instanceof Boolean) {
+            o.writeByte(((Boolean) key).booleanValue() ? TAG_TRUE : TAG_FALSE);
+        }
+        else if (key instanceof Character) {
+            o.writeByte(TAG_CHARACTER);
+            o.writeVarint(((Character) key).charValue());
+        }
+        else if (key instanceof Float) {
+            o.writeByte(TAG_FLOAT);
+            o.writeVarint(Float.floatToIntBits(((Float) key).floatValue()));
+        }
+        else {
+            //anything else falls back to Java serialization of just that key
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(key);
+            oos.close();
+            o.writeByte(TAG_SERIALIZED);
+            o.writeVarint(bytes.size());
+            o.writeBytes(bytes.toByteArray());
+        }
+    }
+
+    static Object readKey(In in) throws IOException {
+        return readKey(in, false);
+    }
+
+    //Same as previous method; trusted skips the allow-list, for keys this process serialized itself
+    static Object readKey(In in, boolean trusted) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                byte[] bytes = readBytes(in, readLength(in, "string length"));
+                return new String(bytes, StandardCharsets.UTF_8);
+            case TAG_INTEGER:
+                return Integer.valueOf((int) unzigzag(in.readVarlong()));
+            case TAG_LONG:
+                return Long.valueOf(unzigzag(in.readVarlong()));
+            case TAG_DOUBLE:
+                return Double.valueOf(Double.longBitsToDouble(in.readLong()));
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_CHARACTER:
+                return Character.valueOf((char) in.readVarint());
+            case TAG_FLOAT:
+                return Float.valueOf(Float.intBitsToFloat(in.readVarint()));
+            case TAG_SERIALIZED:
+                return deserialize(readBytes(in, readLength(in, "key length")), trusted);
+            default:
+                throw new StreamCorruptedException("Unknown HashTree key tag " + tag);
+        }
+    }
+
+    //Reads a record's field width, which is one to eight bytes
+    static int readWidth(In in) throws IOException {
+        int width = in.readByte();
+        if (width < 1 || width > 8) {
+            throw new StreamCorruptedException("Bad field width " + width + " in HashTree record.");
+        }
+        return width;
+    }
+
+    //Returns the fewest bytes, at least one, that hold v as an unsigned big-endian number
+    static int width(long v) {
+        return Math.max(1, (64 - Long.numberOfLeadingZeros(v) + 7) / 8);
+    }
+
+    //Reads a varint that counts something, refusing values no int count can have
+    static int readLength(In in, String what) throws IOException {
+        long length = in.readVarlong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Bad " + what + " " + length + " in HashTree stream.");
+        }
+        return (int) length;
+    }
+
+    /* Reads length bytes into a new array, growing it as the bytes arrive, so a damaged length
+     * ends in an EOFException instead of an allocation the stream cannot fill
+     */
+    static byte[] readBytes(In in, int length) throws IOException {
+        byte[] bytes = new byte[Math.min(length, ALLOCATION_STEP)];
+        int off = 0;
+        while (true) {
+            in.expect(bytes.length - off);
+            in.readBytes(bytes, off, bytes.length - off);
+            off = bytes.length;
+            if (off == length) {
+                return bytes;
+            }
+            bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * off));
+        }
+    }
+
+    //Lets serialized keys contain instances of keyClass; see HashTree.allowKeyClass
+    static void allow(Class keyClass) {
+        allowedClasses.add(keyClass.getName());
+    }
+
+    static Object deserialize(byte[] bytes, boolean trusted) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        ObjectInputStream ois = trusted ? new ObjectInputStream(in) : new KeyInputStream(in);
+        try {
+            return ois.readObject();
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException("Cannot load HashTree key class", e);
+        }
+        catch (RuntimeException e) {
+            //a damaged key can fail inside the key class's own readObject
+            throw new StreamCorruptedException("Damaged HashTree key: " + e);
+        }
+        catch (OutOfMemoryError e) {
+            /* ObjectInputStream makes an array at the length it reads before reading any of its
+             * elements, and Java 8 has no hook to refuse the length first; a key of bytes.length
+             * bytes holds no array that long, so this is a damaged length, and the array was
+             * never made
+             */
+            throw new StreamCorruptedException("Damaged HashTree key: array too large for "
+                + bytes.length + " bytes");
+        }
+        finally {
+            ois.close();
+        }
+    }
+
+    //Refuses every class not on the allow-list before it is loaded, so none of its code runs
+    private static class KeyInputStream extends ObjectInputStream {
+        KeyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            //arrays of primitives, such as the magnitude inside a BigInteger
+            boolean primitiveArray = name.length() == 2 && name.charAt(0) == '[';
+            if (!primitiveArray && !allowedClasses.contains(name)) {
+                throw new InvalidClassException(name, "Not allowed in a HashTree key; see HashTree.allowKeyClass");
+            }
+            return super.resolveClass(desc);
+        }
+
+        protected Class resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed in a HashTree key.");
+        }
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    //A node whose children are being written; collects each child's id and record offset
+    private static class Frame {
+        //the node's children sorted by key id, with their ids; the first count have been visited
+        final Map.Entry[] entries;
+        final int[] ids;
+        final long[] offsets;
+        int count;
+
+        Frame(HashTree node, Map keyIds) {
+            Object[] unsorted = node.data.entrySet().toArray();
+            long[] order = new long[unsorted.length];
+            for (int i = 0; i < unsorted.length; i++) {
+                int id = ((Integer) keyIds.get(((Map.Entry) unsorted[i]).getKey())).intValue();
+                order[i] = ((long) id << 32) | i;
+            }
+            Arrays.sort(order);
+            entries = new Map.Entry[unsorted.length];
+            ids = new int[unsorted.length];
+            offsets = new long[unsorted.length];
+            for (int i = 0; i < unsorted.length; i++) {
+                entries[i] = (Map.Entry) unsorted[(int) order[i]];
+                ids[i] = (int) (order[i] >>> 32);
+            }
+        }
+
+        boolean hasNext() {
+            return count < entries.length;
+        }
+
+        //Returns the next child to visit; its record offset is given to add once known
+        Map.Entry next() {
+            return entries[count];
+        }
+
+        //Records the offset of the child next returned, -1 for a leaf
+        void add(long offset) {
+            offsets[count++] = offset;
+        }
+
+        //Writes the record at offset, all fields of one width
+        void write(Out o, long offset) throws IOException {
+            int maxId = 0;
+            long maxDelta = 0;
+            for (int i = 0; i < count; i++) {
+                maxId = Math.max(maxId, ids[i]);
+                maxDelta = Math.max(maxDelta, offsets[i] < 0 ? 0 : offset - offsets[i]);
+            }
+            int idWidth = width(maxId);
+            int deltaWidth = width(maxDelta);
+            o.writeVarint(count);
+            o.writeByte(idWidth);
+            o.writeByte(deltaWidth);
+            for (int i = 0; i < count; i++) {
+                o.writeFixed(ids[i], idWidth);
+                o.writeFixed(offsets[i] < 0 ? 0 : offset - offsets[i], deltaWidth);
+            }
+        }
+    }
+
+    //Buffered output that tracks its position and, optionally, a CRC32 of what it wrote
+    static class Out {
+        private final OutputStream out;
+        private final CRC32 crc;
+        private final byte[] buf;
+        private int pos;
+        private long flushed;
+
+        Out(OutputStream out, boolean checksum) {
+            this(out, checksum, BUFFER_SIZE);
+        }
+
+        //Same as previous constructor with a smaller buffer, for writing many short records
+        Out(OutputStream out, boolean checksum, int bufferSize) {
+            this.out = out;
+            this.crc = checksum ? new CRC32() : null;
+            this.buf = new byte[bufferSize];
+        }
+
+        long position() {
+            return flushed + pos;
+        }
+
+        void writeByte(int b) throws IOException {
+            if (pos == buf.length) {
+                flush();
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes) throws IOException {
+            for (int off = 0; off < bytes.length; ) {
+                if (pos == buf.length) {
+                    flush();
+                }
+                int n = Math.min(bytes.length - off, buf.length - pos);
+                System.arraycopy(bytes, off, buf, pos, n);
+                pos += n;
+                off += n;
+            }
+        }
+
+        void writeVarint(int v) throws IOException {
+            writeVarlong(v & 0xffffffffL);
+        }
+
+        void writeVarlong(long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                writeByte((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            writeByte((int) v);
+        }
+
+        void writeLong(long v) throws IOException {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (v >>> shift));
+            }
+        }
+
+        //Writes the low width bytes of v, most significant first
+        void writeFixed(long v, int width) throws IOException {
+            for (int shift = 8 * (width - 1); shift >= 0; shift -= 8) {
+                writeByte((int) (v >>> shift));
+            }
+        }
+
+        //Writes the checksum, if any, and flushes everything to the underlying stream
+        void finish() throws IOException {
+            if (crc != null) {
+                flush();
+                long value = crc.getValue();
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    buf[pos++] = (byte) (value >>> shift);
+                }
+                out.write(buf, 0, pos);
+                flushed += pos;
+                pos = 0;
+            }
+            else {
+                flush();
+            }
+            out.flush();
+        }
+
+        private void flush() throws IOException {
+            if (crc != null) {
+                crc.update(buf, 0, pos);
+            }
+            out.write(buf, 0, pos);
+            flushed += pos;
+            pos = 0;
+        }
+    }
+
+    /* Buffered input that keeps a CRC32 of every byte consumed so far. An exact In reads no
+     * further ahead than the bytes its reader has said must follow (see expect), so it never
+     * takes bytes that belong to whatever comes after on the stream.
+     */
+    static class In {
+        private final InputStream in;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buf;
+        private int pos;
+        private int limit;
+        //start of the bytes in buf not yet added to crc
+        private int crcMark;
+        //bytes read into buf before its current contents
+        private long filled;
+        //position the stream is known to reach; reads never go past it, except a byte at a time
+        private long end;
+
+        In(InputStream in) {
+            this(in, BUFFER_SIZE);
+        }
+
+        //Same as previous constructor with a smaller buffer, for reading many short records
+        In(InputStream in, int bufferSize) {
+            this(in, bufferSize, false);
+        }
+
+        //Same as previous constructor; exact keeps reads within what expect has promised
+        In(InputStream in, int bufferSize, boolean exact) {
+            this.in = in;
+            this.buf = new byte[bufferSize];
+            this.end = exact ? 0 : Long.MAX_VALUE;
+        }
+
+        //Tells an exact In that at least bytes more bytes follow the current position
+        void expect(long bytes) {
+            if (end != Long.MAX_VALUE) {
+                end = Math.max(end, position() + bytes);
+            }
+        }
+
+        int readByte() throws IOException {
+            if (pos == limit) {
+                fill();
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        void readBytes(byte[] bytes) throws IOException {
+            readBytes(bytes, 0, bytes.length);
+        }
+
+        //Fills bytes from off to off + length
+        void readBytes(byte[] bytes, int off, int length) throws IOException {
+            for (int stop = off + length; off < stop; ) {
+                if (pos == limit) {
+                    fill();
+                }
+                int n = Math.min(stop - off, limit - pos);
+                System.arraycopy(buf, pos, bytes, off, n);
+                pos += n;
+                off += n;
+            }
+        }
+
+        int readVarint() throws IOException {
+            return (int) readVarlong();
+        }
+
+        long readVarlong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint in HashTree stream.");
+        }
+
+        long readLong() throws IOException {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        //Reads a record field width bytes wide, or a varint for a width of 0 (version 1 records)
+        long readField(int width) throws IOException {
+            if (width == 0) {
+                return readVarlong();
+            }
+            long v = 0;
+            for (int i = 0; i < width; i++) {
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        int readInt() throws IOException {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        //Number of bytes consumed so far
+        long position() {
+            return filled + pos;
+        }
+
+        //CRC32 of everything consumed so far
+        long crc() {
+            crc.update(buf, crcMark, pos - crcMark);
+            crcMark = pos;
+            return crc.getValue();
+        }
+
+        private void fill() throws IOException {
+            crc.update(buf, crcMark, pos - crcMark);
+            int wanted = (int) Math.max(1, Math.min(buf.length, end - position()));
+            int n = in.read(buf, 0, wanted);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of HashTree stream.");
+            }
+            filled += limit;
+            pos = 0;
+            crcMark = 0;
+            limit = n;
+        }
+    }
+}
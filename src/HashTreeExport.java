@@ -0,0 +1,182 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Streaming text and JSON export used by HashTree.writeTo(Appendable, Format) and toString.
+ *
+ *   TEXT  one key per line, indented two spaces per level below the top
+ *   JSON  one object per node, keys as member names: {"Durant":{"21 pts":{},...},...}
+ *
+ * The tree is walked with an explicit stack of entry iterators, like HashTree.traverse, and
+ * every key is copied straight into one fixed-size char buffer that is handed
+ * to the target whenever it fills. Nothing is concatenated per node and the memory used does
+ * not grow with the size of the tree, only with its depth.
+ */
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+
+class HashTreeExport {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INDENT = 2;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Appendable out;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    //wraps buffer for targets that are not Writers
+    private final CharBuffer view = CharBuffer.wrap(buffer);
+    private int length;
+
+    HashTreeExport(Appendable out) {
+        this.out = out;
+    }
+
+    //Writes tree to out in the given format, flushing out at the end if it is a Writer
+    static void write(HashTree tree, Appendable out, HashTree.Format format) throws IOException {
+        HashTreeExport export = new HashTreeExport(out);
+        if (format == HashTree.Format.JSON) {
+            export.json(tree);
+        }
+        else {
+            export.text(tree, 0);
+        }
+        export.flush();
+        if (out instanceof Writer) {
+            ((Writer) out).flush();
+        }
+    }
+
+    //Writes each key on its own line, starting at the given indentation level
+    void text(HashTree tree, int level) throws IOException {
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(tree.data.entrySet().iterator());
+        while (!stack.isEmpty()) {
+            Iterator iter = (Iterator) stack.peek();
+            if (!iter.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            Map.Entry entry = (Map.Entry) iter.next();
+            HashTree child = (HashTree) entry.getValue();
+            append('\n');
+            spaces((level + stack.size() - 1) * INDENT);
+            append(String.valueOf(entry.getKey()));
+            if (!child.data.isEmpty()) {
+                stack.push(child.data.entrySet().iterator());
+            }
+        }
+    }
+
+    //Writes the tree as nested JSON objects; keys that are not Strings are written as their toString
+    void json(HashTree tree) throws IOException {
+        ArrayDeque stack = new ArrayDeque();
+        append('{');
+        stack.push(tree.data.entrySet().iterator());
+        boolean first = true;
+        while (!stack.isEmpty()) {
+            Iterator iter = (Iterator) stack.peek();
+            if (!iter.hasNext()) {
+                stack.pop();
+                append('}');
+                first = false;
+                continue;
+            }
+            Map.Entry entry = (Map.Entry) iter.next();
+            HashTree child = (HashTree) entry.getValue();
+            if (!first) {
+                append(',');
+            }
+            quoted(String.valueOf(entry.getKey()));
+            append(':');
+            append('{');
+            if (child.data.isEmpty()) {
+                append('}');
+                first = false;
+            }
+            else {
+                stack.push(child.data.entrySet().iterator());
+                first = true;
+            }
+        }
+    }
+
+    //Writes s as a JSON string literal
+    private void quoted(String s) throws IOException {
+        append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\');
+                append(c);
+            }
+            else if (c == '\n') {
+                append('\\');
+                append('n');
+            }
+            else if (c == '\r') {
+                append('\\');
+                append('r');
+            }
+            else if (c == '\t') {
+                append('\\');
+                append('t');
+            }
+            else if (c < 0x20) {
+                append('\\');
+                append('u');
+                append(HEX[c >> 12 & 0xf]);
+                append(HEX[c >> 8 & 0xf]);
+                append(HEX[c >> 4 & 0xf]);
+                append(HEX[c & 0xf]);
+            }
+            else {
+                append(c);
+            }
+        }
+        append('"');
+    }
+
+    private void spaces(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            append(' ');
+        }
+    }
+
+    private void append(String s) throws IOException {
+        int i = 0;
+        while (i < s.length()) {
+            if (length == BUFFER_SIZE) {
+                flush();
+            }
+            int n = Math.min(s.length() - i, BUFFER_SIZE - length);
+            s.getChars(i, i + n, buffer, length);
+            length += n;
+            i += n;
+        }
+    }
+
+    private void append(char c) throws IOException {
+        if (length == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[length++] = c;
+    }
+
+    //Hands the buffered characters to the target and empties the buffer
+    void flush() throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (out instanceof Writer) {
+            ((Writer) out).write(buffer, 0, length);
+        }
+        else if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(buffer, 0, length);
+        }
+        else {
+            out.append(view, 0, length);
+        }
+        length = 0;
+    }
+}
@@ -0,0 +1,117 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Secondary key index for HashTree. Maps every key in the tree to the nodes that
+ * hold it as a direct child, so a search no longer has to walk the whole tree.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+class HashTreeIndex {
+    //node the index was built on; only searches started here can trust the index
+    final HashTree root;
+    //key -> identity set of the HashTree nodes holding that key
+    private final Map holders = new HashMap();
+
+    HashTreeIndex(HashTree root) {
+        this.root = root;
+    }
+
+    //Records that holder now has key as a direct child
+    void addKey(Object key, HashTree holder) {
+        Set set = (Set) holders.get(key);
+        if (set == null) {
+            set = Collections.newSetFromMap(new IdentityHashMap(2));
+            holders.put(key, set);
+        }
+        set.add(holder);
+    }
+
+    //Forgets that holder has key as a direct child
+    void removeKey(Object key, HashTree holder) {
+        Set set = (Set) holders.get(key);
+        if (set != null) {
+            set.remove(holder);
+            if (set.isEmpty()) {
+                holders.remove(key);
+            }
+        }
+    }
+
+    //Registers every node of tree (attached under key in holder) with this index
+    void addTree(Object key, HashTree holder, HashTree tree) {
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new Object[] { key, holder, tree });
+        while (!stack.isEmpty()) {
+            Object[] frame = (Object[]) stack.pop();
+            HashTree node = (HashTree) frame[2];
+            addKey(frame[0], (HashTree) frame[1]);
+            if (node == null) {
+                continue;
+            }
+            node.index = this;
+            Iterator iter = node.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                stack.push(new Object[] { entry.getKey(), node, entry.getValue() });
+            }
+        }
+    }
+
+    //Unregisters every node of tree (detached from key in holder) from this index
+    void removeTree(Object key, HashTree holder, HashTree tree) {
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new Object[] { key, holder, tree });
+        while (!stack.isEmpty()) {
+            Object[] frame = (Object[]) stack.pop();
+            HashTree node = (HashTree) frame[2];
+            removeKey(frame[0], (HashTree) frame[1]);
+            if (node == null || node.index != this) {
+                continue;
+            }
+            node.index = null;
+            Iterator iter = node.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                stack.push(new Object[] { entry.getKey(), node, entry.getValue() });
+            }
+        }
+    }
+
+    //Returns one subtree mapped to key anywhere in the tree, or null
+    HashTree find(Object key) {
+        Set set = (Set) holders.get(key);
+        if (set == null || set.isEmpty()) {
+            return null;
+        }
+        //straight from the map, so lookups made for the index don't count as reads of the holder
+        HashTree holder = (HashTree) set.iterator().next();
+        return (HashTree) holder.data.get(key);
+    }
+
+    //Returns every subtree mapped to key anywhere in the tree
+    Collection findAll(Object key) {
+        Set set = (Set) holders.get(key);
+        if (set == null) {
+            return Collections.EMPTY_LIST;
+        }
+        Collection result = new ArrayList(set.size());
+        Iterator iter = set.iterator();
+        while (iter.hasNext()) {
+            result.add(((HashTree) iter.next()).data.get(key));
+        }
+        return result;
+    }
+
+    //Returns the nodes holding key as a direct child
+    Collection holdersOf(Object key) {
+        Set set = (Set) holders.get(key);
+        return set == null ? Collections.EMPTY_SET : Collections.unmodifiableSet(set);
+    }
+}
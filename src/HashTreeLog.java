@@ -0,0 +1,610 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Write-ahead log that makes a LoggedHashTree durable for the cost of an append instead of
+ * a full rewrite. A log directory holds:
+ *   tree.snapshot   8-byte generation G, then the whole tree in HashTree.writeTo format
+ *   log.<n>         records of the changes made after the snapshot, for every n >= G
+ * Each record is a 4-byte length, the CRC32 of the payload, then the payload: an op byte,
+ * the path as a varint count of keys, and the op's arguments, with keys in HashTreeCodec's
+ * tagged encoding.
+ *
+ * Durability: appending only buffers the record. commit() writes and forces everything
+ * appended so far; while one caller forces, others queue behind it and the next one forces
+ * all of their records at once (group commit). With syncMillis set a background thread also
+ * commits that often, bounding what a crash can lose.
+ *
+ * Compaction: once the current log passes compactBytes, the change that crossed it is
+ * finished, then the tree is frozen with snapshot(), which only refreezes the paths changed
+ * since the last one, and appends move to a new log file. The snapshot is written to a
+ * temporary file on a background thread, forced, and renamed over tree.snapshot; only then
+ * are the older logs deleted. A compaction that fails never fails the change that started
+ * it: it is reported by compactionFailure(), and also by commit() if the log itself can no
+ * longer be written. checkpoint() does the same on demand and throws on failure.
+ *
+ * Recovery: open() loads the snapshot and replays the logs in order. A record cut short by a
+ * crash ends the newest log; it is truncated there and appends continue after it.
+ *
+ * The tree must be changed, and checkpoint() called, from one thread at a time, as with any
+ * HashTree; commit() may be called from any thread.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class HashTreeLog implements Closeable {
+    static final String SNAPSHOT = "tree.snapshot";
+    static final String LOG_PREFIX = "log.";
+
+    static final int OP_PUT = 1;
+    static final int OP_REMOVE = 2;
+    static final int OP_CLEAR = 3;
+    static final int OP_REPLACE = 4;
+
+    //bytes of length and checksum in front of every record
+    private static final int FRAME_HEADER = 8;
+    //codec buffer for one record; most records are a few dozen bytes
+    private static final int RECORD_BUFFER = 256;
+
+    private final File dir;
+    private final long compactBytes;
+    //the tree this log records; set before any record is appended
+    final LoggedHashTree root;
+    //true while recovering, so replayed changes are not logged again
+    boolean replaying;
+
+    //record encoding, reused for every append
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final HashTreeCodec.Out payloadOut = new HashTreeCodec.Out(payload, false, RECORD_BUFFER);
+    private final CRC32 crc = new CRC32();
+
+    //guarded by this: records appended but not yet handed to the file
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended;
+    private long durable;
+    private boolean flushing;
+    private FileChannel channel;
+    private long generation;
+    private long logBytes;
+    private IOException failure;
+    //set by append once the log has grown past compactBytes
+    private boolean compactDue;
+    private IOException compactionFailure;
+
+    //guarded by snapshotLock
+    private final Object snapshotLock = new Object();
+    private long snapshotGeneration;
+
+    private volatile boolean closed;
+    private Thread syncer;
+    private Thread compactor;
+
+    private HashTreeLog(File dir, long compactBytes) {
+        this.dir = dir;
+        this.compactBytes = compactBytes;
+        this.root = new LoggedHashTree(this);
+    }
+
+    //Opens the log in dir, recovering its tree; nothing is durable until commit()
+    public static HashTreeLog open(File dir) throws IOException {
+        return open(dir, 0, 0);
+    }
+
+    /* Opens the log in dir, creating it if needed, and recovers its tree. With syncMillis above
+     * 0 a background thread commits that often; with compactBytes above 0 the log is compacted
+     * into a new snapshot whenever it grows past that many bytes.
+     */
+    public static HashTreeLog open(File dir, long syncMillis, long compactBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create log directory " + dir);
+        }
+        HashTreeLog log = new HashTreeLog(dir, compactBytes);
+        log.recover();
+        if (syncMillis > 0) {
+            log.startSyncer(syncMillis);
+        }
+        return log;
+    }
+
+    //Returns the recovered tree; every change made to it is appended to this log
+    public LoggedHashTree tree() {
+        return root;
+    }
+
+    /* Appends one record; called by LoggedHashTree after the change has been made. Only notes
+     * that a compaction is due; LoggedHashTree starts it with compactIfDue once this returns.
+     */
+    synchronized void append(int op, Object[] path, Object first, Object second, HashTree content) {
+        try {
+            encode(op, path, first, second, content);
+        }
+        catch (IOException e) {
+            //only reachable through a key that fails to serialize
+            throw new UncheckedIOException(e);
+        }
+        byte[] record = payload.toByteArray();
+        int length = record.length;
+        crc.reset();
+        crc.update(record, 0, length);
+        writeInt(pending, length);
+        writeInt(pending, (int) crc.getValue());
+        pending.write(record, 0, length);
+        appended++;
+        logBytes += FRAME_HEADER + length;
+        if (compactBytes > 0 && logBytes >= compactBytes) {
+            compactDue = true;
+        }
+    }
+
+    private void encode(int op, Object[] path, Object first, Object second, HashTree content) throws IOException {
+        payload.reset();
+        payloadOut.writeByte(op);
+        payloadOut.writeVarint(path.length);
+        for (int i = 0; i < path.length; i++) {
+            HashTreeCodec.writeKey(payloadOut, path[i]);
+        }
+        if (op == OP_REPLACE) {
+            HashTreeCodec.writeKey(payloadOut, first);
+            HashTreeCodec.writeKey(payloadOut, second);
+        }
+        else if (op == OP_PUT) {
+            if (content == null || content.isEmpty()) {
+                payloadOut.writeVarint(0);
+            }
+            else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                HashTreeCodec.write(content, bytes, false, RECORD_BUFFER);
+                payloadOut.writeVarint(bytes.size());
+                payloadOut.writeBytes(bytes.toByteArray());
+            }
+        }
+        payloadOut.finish();
+    }
+
+    /* Makes every change appended so far durable. Callers arriving while another one forces
+     * the file wait for it, and the first of them then forces all of their records at once.
+     */
+    public void commit() throws IOException {
+        ByteArrayOutputStream batch;
+        long upTo;
+        FileChannel target;
+        synchronized (this) {
+            long wanted = appended;
+            while (true) {
+                if (failure != null) {
+                    throw new IOException("Log failed earlier.", failure);
+                }
+                if (durable >= wanted) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                awaitFlush();
+            }
+            flushing = true;
+            batch = pending;
+            pending = new ByteArrayOutputStream();
+            upTo = appended;
+            target = channel;
+        }
+        IOException error = null;
+        try {
+            write(target, batch);
+            target.force(false);
+        }
+        catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            flushing = false;
+            if (error != null) {
+                failure = error;
+            }
+            else {
+                durable = Math.max(durable, upTo);
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /* Writes a new snapshot of the tree and deletes the logs it replaces. Must be called from
+     * the thread that changes the tree. Returns once the snapshot is durable.
+     */
+    public void checkpoint() throws IOException {
+        PersistentHashTree snapshot;
+        long snapshotAt;
+        synchronized (this) {
+            snapshot = root.snapshot();
+            snapshotAt = rotate();
+        }
+        writeSnapshot(snapshot, snapshotAt);
+    }
+
+    //Stops the background threads, commits what is left and closes the file
+    public void close() throws IOException {
+        closed = true;
+        Thread s;
+        Thread c;
+        synchronized (this) {
+            s = syncer;
+            c = compactor;
+        }
+        try {
+            if (s != null) {
+                s.interrupt();
+                s.join();
+            }
+            if (c != null) {
+                c.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing log.");
+        }
+        try {
+            commit();
+        }
+        finally {
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+
+    /* Starts a background compaction if an append took the log past compactBytes. Called by
+     * LoggedHashTree once a change and its record are complete. Never throws: a failure is kept
+     * for compactionFailure(), and also reported by commit() if it broke the log file.
+     */
+    void compactIfDue() {
+        synchronized (this) {
+            if (!compactDue || compactor != null || closed) {
+                return;
+            }
+            compactDue = false;
+        }
+        compactInBackground();
+    }
+
+    /* Returns the error that stopped the latest background compaction, or null if it
+     * succeeded or none has run. The logs are kept when a compaction fails, so nothing is
+     * lost; the next one tries again.
+     */
+    public synchronized IOException compactionFailure() {
+        return compactionFailure;
+    }
+
+    //Freezes the tree, moves appends to a new log file and writes the snapshot on another thread
+    private void compactInBackground() {
+        final PersistentHashTree snapshot;
+        final long snapshotAt;
+        synchronized (this) {
+            snapshot = root.snapshot();
+            try {
+                snapshotAt = rotate();
+            }
+            catch (IOException e) {
+                //rotate has marked the log failed, so commit() reports this too
+                compactionFailure = e;
+                return;
+            }
+            compactor = new Thread(new Runnable() {
+                public void run() {
+                    IOException error = null;
+                    try {
+                        writeSnapshot(snapshot, snapshotAt);
+                    }
+                    catch (IOException e) {
+                        error = e;
+                    }
+                    finally {
+                        synchronized (HashTreeLog.this) {
+                            compactionFailure = error;
+                            compactor = null;
+                        }
+                    }
+                }
+            }, "HashTreeLog compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    /* Forces everything pending into the current log file and starts the next one. Returns the
+     * new file's generation, which is the generation of a snapshot taken just now.
+     */
+    private synchronized long rotate() throws IOException {
+        while (flushing) {
+            awaitFlush();
+        }
+        if (failure != null) {
+            throw new IOException("Log failed earlier.", failure);
+        }
+        try {
+            write(channel, pending);
+            pending = new ByteArrayOutputStream();
+            channel.force(false);
+            channel.close();
+            durable = appended;
+            generation++;
+            channel = openLog(generation);
+        }
+        catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        logBytes = 0;
+        return generation;
+    }
+
+    //Writes snapshot as tree.snapshot for generation and deletes the logs before it
+    private void writeSnapshot(PersistentHashTree snapshot, long snapshotAt) throws IOException {
+        synchronized (snapshotLock) {
+            //a later snapshot may have been written first; it already covers this one
+            if (snapshotAt <= snapshotGeneration) {
+                return;
+            }
+            File temp = new File(dir, SNAPSHOT + ".tmp");
+            FileOutputStream file = new FileOutputStream(temp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+                out.writeLong(snapshotAt);
+                snapshot.writeTo(out);
+                out.flush();
+                file.getFD().sync();
+            }
+            finally {
+                file.close();
+            }
+            Files.move(temp.toPath(), new File(dir, SNAPSHOT).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+            snapshotGeneration = snapshotAt;
+            long[] generations = logGenerations();
+            for (int i = 0; i < generations.length && generations[i] < snapshotAt; i++) {
+                logFile(generations[i]).delete();
+            }
+        }
+    }
+
+    //Loads the snapshot, replays every log after it and opens the newest log for appending
+    private void recover() throws IOException {
+        replaying = true;
+        try {
+            File snapshot = new File(dir, SNAPSHOT);
+            if (snapshot.exists()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+                try {
+                    snapshotGeneration = in.readLong();
+                    root.readFrom(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            new File(dir, SNAPSHOT + ".tmp").delete();
+            generation = snapshotGeneration;
+            long validBytes = 0;
+            long[] generations = logGenerations();
+            for (int i = 0; i < generations.length; i++) {
+                if (generations[i] < snapshotGeneration) {
+                    //left behind by a compaction that stopped after its snapshot was written
+                    logFile(generations[i]).delete();
+                    continue;
+                }
+                boolean newest = i == generations.length - 1;
+                generation = generations[i];
+                validBytes = replay(logFile(generations[i]), newest);
+            }
+            channel = openLog(generation);
+            if (channel.size() > validBytes) {
+                channel.truncate(validBytes);
+                channel.force(false);
+            }
+            channel.position(validBytes);
+            logBytes = validBytes;
+        }
+        finally {
+            replaying = false;
+        }
+    }
+
+    /* Applies every record in file to the tree and returns the length of the records read. A
+     * torn or corrupt record ends the newest log; anywhere else the log is damaged.
+     */
+    private long replay(File file, boolean newest) throws IOException {
+        long length = file.length();
+        long valid = 0;
+        byte[] buf = new byte[256];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (valid < length) {
+                if (length - valid < FRAME_HEADER) {
+                    break;
+                }
+                int size = in.readInt();
+                int sum = in.readInt();
+                if (size < 0 || size > length - valid - FRAME_HEADER) {
+                    break;
+                }
+                if (buf.length < size) {
+                    buf = new byte[Math.max(size, buf.length * 2)];
+                }
+                in.readFully(buf, 0, size);
+                crc.reset();
+                crc.update(buf, 0, size);
+                if ((int) crc.getValue() != sum) {
+                    break;
+                }
+                apply(new HashTreeCodec.In(new ByteArrayInputStream(buf, 0, size), Math.max(size, 1)));
+                valid += FRAME_HEADER + size;
+            }
+        }
+        catch (EOFException e) {
+            //a record cut short; handled below like any other torn record
+        }
+        finally {
+            in.close();
+        }
+        if (valid < length && !newest) {
+            throw new StreamCorruptedException("Damaged record in " + file + " at byte " + valid);
+        }
+        return valid;
+    }
+
+    //Repeats one logged change on the tree
+    private void apply(HashTreeCodec.In in) throws IOException {
+        int op = in.readByte();
+        Object[] path = new Object[in.readVarint()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = HashTreeCodec.readKey(in);
+        }
+        int last = op == OP_PUT || op == OP_REMOVE ? path.length - 1 : path.length;
+        HashTree node = root;
+        for (int i = 0; i < last && node != null; i++) {
+            node = node.getTree(path[i]);
+        }
+        if (node == null || last < 0) {
+            throw new StreamCorruptedException("Log record for missing path " + Arrays.asList(path));
+        }
+        switch (op) {
+        case OP_PUT:
+            LoggedHashTree child = new LoggedHashTree(this);
+            int size = in.readVarint();
+            if (size > 0) {
+                byte[] content = new byte[size];
+                in.readBytes(content);
+                HashTreeCodec.read(child, new ByteArrayInputStream(content), Math.min(size, RECORD_BUFFER));
+            }
+            node.putNode(path[last], child);
+            break;
+        case OP_REMOVE:
+            node.removeNode(path[last]);
+            break;
+        case OP_CLEAR:
+            node.clear();
+            break;
+        case OP_REPLACE:
+            Object currentKey = HashTreeCodec.readKey(in);
+            node.replaceKey(currentKey, HashTreeCodec.readKey(in));
+            break;
+        default:
+            throw new StreamCorruptedException("Unknown log record type " + op);
+        }
+    }
+
+    private void startSyncer(final long syncMillis) {
+        syncer = new Thread(new Runnable() {
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(syncMillis);
+                        commit();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    catch (IOException e) {
+                        //recorded as the log's failure; every later commit reports it
+                        return;
+                    }
+                }
+            }
+        }, "HashTreeLog syncer");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    private void awaitFlush() throws InterruptedIOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log.");
+        }
+    }
+
+    private FileChannel openLog(long gen) throws IOException {
+        FileChannel log = FileChannel.open(logFile(gen).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.position(log.size());
+        return log;
+    }
+
+    private File logFile(long gen) {
+        return new File(dir, LOG_PREFIX + gen);
+    }
+
+    //Generations of the log files in dir, oldest first
+    private long[] logGenerations() {
+        String[] names = dir.list();
+        long[] generations = new long[names == null ? 0 : names.length];
+        int count = 0;
+        for (int i = 0; i < generations.length; i++) {
+            if (names[i].startsWith(LOG_PREFIX)) {
+                try {
+                    generations[count] = Long.parseLong(names[i].substring(LOG_PREFIX.length()));
+                    count++;
+                }
+                catch (NumberFormatException e) {
+                    //not one of ours
+                }
+            }
+        }
+        generations = Arrays.copyOf(generations, count);
+        Arrays.sort(generations);
+        return generations;
+    }
+
+    //Forces the rename of the snapshot to disk; not every platform can open a directory
+    private void syncDirectory() {
+        try {
+            FileChannel d = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                d.force(true);
+            }
+            finally {
+                d.close();
+            }
+        }
+        catch (IOException e) {
+            //best effort
+        }
+    }
+
+    private static void write(FileChannel target, ByteArrayOutputStream bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+}
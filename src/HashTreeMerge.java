@@ -0,0 +1,258 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Merges one HashTree into another. The merge walks the source tree alongside the target,
+ * looking each source key up once in the target node it belongs in:
+ *   - a key missing from the target has its whole subtree brought over, by a copy (COPY), by
+ *     moving the source's own subtree out of the source and into the target (GRAFT), or by
+ *     attaching an immutable snapshot of it that the target copies a node at a time only where
+ *     it is later written to (COPY_ON_WRITE, see HashTree.getWritableTree)
+ *   - a key both trees have is settled by a ConflictPolicy: merge the two subtrees (UNION,
+ *     the default and what HashTree.add(HashTree) does), keep the target's (KEEP_TARGET) or
+ *     swap in the source's (TAKE_SOURCE), or decide per key
+ * With GRAFT, merging a small tree into a large one costs the size of the small one, not of
+ * the branches it adds, but the source loses every branch moved out of it; a node is held in
+ * one place only, so that each tree's cached digests and counts stay right. COPY_ON_WRITE
+ * leaves the source whole and takes a snapshot of each branch it adds (see
+ * HashTree.snapshot), which walks the branch like COPY does unless the source was snapshotted
+ * since the branch last changed and that snapshot is still held; so take source.snapshot()
+ * first, and keep it, to merge one source cheaply into many targets. Its saving over COPY is
+ * in what comes after: every target shares the snapshot's nodes until it writes to them.
+ * Node types that keep state of their own, and trees with a key index, are always copied into
+ * (see HashTree.canGraft). diff returns the paths a merge would change without changing
+ * anything. Merges are immutable and can be shared between threads.
+ *
+ * After a COPY_ON_WRITE merge, subtrees returned by lookups (getTree, search, select) below a
+ * grafted key are the immutable snapshots themselves and throw UnsupportedOperationException
+ * if changed. Write through the target instead: add and set with a path, and removeAll, copy
+ * the nodes on the path they walk into mutable ones.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public final class HashTreeMerge {
+    //How subtrees missing from the target are brought over
+    public enum Mode {
+        //copied into new nodes made by the target
+        COPY,
+        //moved as they are out of the source and into the target
+        GRAFT,
+        /* attached as immutable snapshots, copied along a path only when it is written to through
+         * the target (add, set with a path, removeAll); a subtree returned by getTree, search or
+         * select below a grafted key is read-only until then
+         */
+        COPY_ON_WRITE
+    }
+
+    //What to do with a key both trees have
+    public enum Resolution {
+        //merge the source's subtree into the target's
+        MERGE,
+        //leave the target's subtree as it is
+        KEEP,
+        //put the source's subtree in place of the target's, brought over as for a missing key
+        REPLACE
+    }
+
+    //Decides what happens to a key found in both trees, given the subtrees each has under it
+    public interface ConflictPolicy {
+        Resolution resolve(Object key, HashTree target, HashTree source);
+    }
+
+    public static final ConflictPolicy UNION = new Fixed(Resolution.MERGE);
+    public static final ConflictPolicy KEEP_TARGET = new Fixed(Resolution.KEEP);
+    public static final ConflictPolicy TAKE_SOURCE = new Fixed(Resolution.REPLACE);
+
+    private static final HashTreeMerge DEFAULT = new HashTreeMerge(Mode.COPY, UNION);
+
+    private final Mode mode;
+    private final ConflictPolicy policy;
+
+    private HashTreeMerge(Mode mode, ConflictPolicy policy) {
+        this.mode = mode;
+        this.policy = policy;
+    }
+
+    //Returns the merge that copies missing subtrees and merges the subtrees of shared keys
+    public static HashTreeMerge create() {
+        return DEFAULT;
+    }
+
+    //Returns this merge bringing missing subtrees over the given way
+    public HashTreeMerge mode(Mode mode) {
+        return new HashTreeMerge(mode, policy);
+    }
+
+    //Returns this merge settling shared keys with the given policy
+    public HashTreeMerge policy(ConflictPolicy policy) {
+        return new HashTreeMerge(mode, policy);
+    }
+
+    /* Merges source into target. Returns how many subtrees were brought over, counting each
+     * missing or replaced key once however much lies below it.
+     */
+    public long merge(HashTree target, HashTree source) {
+        long changed = 0;
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new HashTree[] { target, source });
+        while (!stack.isEmpty()) {
+            HashTree[] frame = (HashTree[]) stack.pop();
+            HashTree into = frame[0];
+            HashTree from = frame[1];
+            if (into == from) {
+                continue;
+            }
+            //keys of subtrees to move out of from once it is no longer being iterated
+            List moves = null;
+            Iterator iter = from.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                Object key = entry.getKey();
+                HashTree child = (HashTree) entry.getValue();
+                HashTree existing = into.getTree(key);
+                Resolution resolution = existing == null ? Resolution.REPLACE
+                    : existing == child ? Resolution.KEEP
+                    : policy.resolve(key, existing, child);
+                if (resolution == Resolution.REPLACE) {
+                    if (movesOut(into, from, child)) {
+                        if (moves == null) {
+                            moves = new ArrayList();
+                        }
+                        moves.add(key);
+                    }
+                    else {
+                        bringOver(into, key, child, existing != null);
+                    }
+                    changed++;
+                }
+                else if (resolution == Resolution.MERGE && !child.data.isEmpty()) {
+                    stack.push(new HashTree[] { into.getWritableTree(key), child });
+                }
+            }
+            for (int i = 0; moves != null && i < moves.size(); i++) {
+                Object key = moves.get(i);
+                //detached from the source first, so the target takes the node itself
+                into.set(key, (HashTree) from.remove(key));
+            }
+        }
+        return changed;
+    }
+
+    /* Returns the paths (each a List of keys from the top level down) of the subtrees merge
+     * would bring over from source into target: the topmost keys missing from target, and the
+     * keys the policy would replace. Nothing is changed, and nothing below those paths is
+     * walked.
+     */
+    public List diff(HashTree target, HashTree source) {
+        List result = new ArrayList();
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new Object[] { new ArrayList(), target, source });
+        while (!stack.isEmpty()) {
+            Object[] frame = (Object[]) stack.pop();
+            List path = (List) frame[0];
+            HashTree into = (HashTree) frame[1];
+            HashTree from = (HashTree) frame[2];
+            if (into == from) {
+                continue;
+            }
+            Iterator iter = from.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                Object key = entry.getKey();
+                HashTree child = (HashTree) entry.getValue();
+                HashTree existing = into.getTree(key);
+                Resolution resolution = existing == null ? Resolution.REPLACE
+                    : existing == child ? Resolution.KEEP
+                    : policy.resolve(key, existing, child);
+                if (resolution == Resolution.KEEP
+                        || (resolution == Resolution.MERGE && child.data.isEmpty())) {
+                    continue;
+                }
+                List childPath = new ArrayList(path);
+                childPath.add(key);
+                if (resolution == Resolution.REPLACE) {
+                    result.add(childPath);
+                }
+                else {
+                    stack.push(new Object[] { childPath, existing, child });
+                }
+            }
+        }
+        return result;
+    }
+
+    /* Returns true if GRAFT moves child, a mutable node held by from, into target as it is.
+     * Leaves are cheaper to make than to move.
+     */
+    private boolean movesOut(HashTree target, HashTree from, HashTree child) {
+        return mode == Mode.GRAFT && child.parent == from && !child.data.isEmpty()
+            && target.canGraft(child);
+    }
+
+    /* Puts source's subtree under key in target, in place of whatever is there when replace is
+     * set: attached as an immutable snapshot when the mode and target allow (with GRAFT, only
+     * a source that is already one), otherwise copied.
+     */
+    private void bringOver(HashTree target, Object key, HashTree source, boolean replace) {
+        //leaves are cheaper to make than to share
+        if (!source.data.isEmpty() && mode != Mode.COPY
+                && (mode == Mode.COPY_ON_WRITE || source instanceof PersistentHashTree)) {
+            HashTree shared = source.snapshot();
+            if (target.canGraft(shared)) {
+                target.set(key, shared);
+                return;
+            }
+        }
+        HashTree copy;
+        if (replace) {
+            target.set(key, target.createNewTree());
+            //a subclass may adopt a copy of the node it was given
+            copy = target.getTree(key);
+        }
+        else {
+            copy = target.add(key);
+        }
+        copy(copy, source);
+    }
+
+    //Copies every node of source into copy, which is new, through add so subclasses see each one
+    private static void copy(HashTree copy, HashTree source) {
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new HashTree[] { copy, source });
+        while (!stack.isEmpty()) {
+            HashTree[] frame = (HashTree[]) stack.pop();
+            Iterator iter = frame[1].data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                HashTree child = (HashTree) entry.getValue();
+                HashTree added = frame[0].add(entry.getKey());
+                if (!child.data.isEmpty()) {
+                    stack.push(new HashTree[] { added, child });
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "HashTreeMerge[" + mode + ", " + policy + "]";
+    }
+
+    //Policy settling every key the same way
+    private static class Fixed implements ConflictPolicy {
+        private final Resolution resolution;
+
+        Fixed(Resolution resolution) {
+            this.resolution = resolution;
+        }
+
+        public Resolution resolve(Object key, HashTree target, HashTree source) {
+            return resolution;
+        }
+
+        public String toString() {
+            return resolution.toString();
+        }
+    }
+}
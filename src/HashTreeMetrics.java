@@ -0,0 +1,331 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Operation metrics gathered by an InstrumentedHashTree: a count and latency histogram per
+ * operation, histograms of how many nodes each search and traversal visited and how many
+ * levels each path lookup walked, the number of nodes in the tree, and the distribution of
+ * child counts (fan-out) over its nodes.
+ *
+ * Histograms have one bucket per power of two (bucket b holds values from 2^(b-1) to
+ * 2^b - 1, bucket 0 holds 0), so recording a value is one increment and percentiles come out
+ * rounded up to the top of their bucket. Every counter is atomic, so metrics can be read from
+ * another thread, e.g. over JMX, while the tree is in use. Read them with snapshot(), or
+ * register() them as an MXBean.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class HashTreeMetrics implements HashTreeMetricsMXBean {
+    //Operations that are timed
+    public enum Operation {
+        //add(key), once per level for a path
+        ADD,
+        //remove(key)
+        REMOVE,
+        //getTree, list or getArray with a path
+        GET_PATH,
+        SEARCH,
+        SEARCH_ALL,
+        TRAVERSE
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final Histogram[] latency = new Histogram[OPERATIONS.length];
+    private final Histogram[] visited = new Histogram[OPERATIONS.length];
+    private final Histogram pathDepth = new Histogram();
+    private final Histogram fanOut = new Histogram();
+    private final AtomicLong nodes = new AtomicLong();
+    private ObjectName name;
+
+    HashTreeMetrics() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latency[i] = new Histogram();
+            visited[i] = new Histogram();
+        }
+    }
+
+    //Records one operation that started at start (from System.nanoTime) and ended now
+    void record(Operation op, long start) {
+        latency[op.ordinal()].add(System.nanoTime() - start, 1);
+    }
+
+    //Same as previous method, also recording how many nodes the operation visited
+    void record(Operation op, long start, long nodesVisited) {
+        record(op, start);
+        visited[op.ordinal()].add(nodesVisited, 1);
+    }
+
+    //Records a path lookup that walked depth levels
+    void recordPathDepth(int depth) {
+        pathDepth.add(depth, 1);
+    }
+
+    //Records that a node's child count changed from before to after
+    void fanOutChanged(int before, int after) {
+        if (before != after) {
+            fanOut.add(before, -1);
+            fanOut.add(after, 1);
+        }
+    }
+
+    //Adds (count 1) or removes (count -1) a node with the given number of children
+    void nodeChanged(int children, int count) {
+        nodes.addAndGet(count);
+        fanOut.add(children, count);
+    }
+
+    //Counts the root, which has children but is not a node of the tree itself
+    void rootCreated() {
+        fanOut.add(0, 1);
+    }
+
+    //Returns a copy of every metric as it is now
+    public Snapshot snapshot() {
+        Distribution[] latencies = new Distribution[OPERATIONS.length];
+        Distribution[] visits = new Distribution[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = latency[i].distribution();
+            visits[i] = visited[i].distribution();
+        }
+        return new Snapshot(nodes.get(), latencies, visits, pathDepth.distribution(), fanOut.distribution());
+    }
+
+    /* Registers these metrics with the platform MBean server as
+     * HashTree:type=HashTreeMetrics,name=<name>, replacing an earlier registration of them.
+     */
+    public synchronized void register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName("HashTree:type=HashTreeMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.name = objectName;
+    }
+
+    //Removes the registration made by register, if any
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            name = null;
+        }
+    }
+
+    public long getNodeCount() {
+        return nodes.get();
+    }
+
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            result.put(OPERATIONS[i].name(), Long.valueOf(latency[i].count()));
+        }
+        return result;
+    }
+
+    public Map<String, Double> getMeanLatencyNanos() {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            result.put(OPERATIONS[i].name(), Double.valueOf(latency[i].distribution().getMean()));
+        }
+        return result;
+    }
+
+    public Map<String, Long> getP99LatencyNanos() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            result.put(OPERATIONS[i].name(), Long.valueOf(latency[i].distribution().getPercentile(0.99)));
+        }
+        return result;
+    }
+
+    public double getMeanSearchVisited() {
+        return visited[Operation.SEARCH.ordinal()].distribution().getMean();
+    }
+
+    public double getMeanTraverseVisited() {
+        return visited[Operation.TRAVERSE.ordinal()].distribution().getMean();
+    }
+
+    public double getMeanPathDepth() {
+        return pathDepth.distribution().getMean();
+    }
+
+    public long[] getFanOutHistogram() {
+        return fanOut.distribution().getBuckets();
+    }
+
+    //Clears the operation counts, latencies, visit counts and path depths; the node count and fan-out stay
+    public void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latency[i].clear();
+            visited[i].clear();
+        }
+        pathDepth.clear();
+    }
+
+    //Power-of-two histogram of non-negative values
+    static class Histogram {
+        static final int BUCKETS = 64;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        //Adds count (which may be negative) occurrences of value
+        void add(long value, long count) {
+            buckets.addAndGet(bucket(value), count);
+            sum.add(value * count);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            sum.reset();
+        }
+
+        Distribution distribution() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return new Distribution(copy, sum.sum());
+        }
+
+        static int bucket(long value) {
+            return value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+    }
+
+    //Copy of one histogram
+    public static class Distribution {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+
+        Distribution(long[] buckets, long sum) {
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i];
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        //Returns how many values were recorded
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        //Returns the value below which fraction p of the values fall, rounded up to a power of two minus one
+        public long getPercentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        //Returns the bucket counts, trailing empty buckets left off
+        public long[] getBuckets() {
+            int length = buckets.length;
+            while (length > 0 && buckets[length - 1] == 0) {
+                length--;
+            }
+            long[] copy = new long[length];
+            System.arraycopy(buckets, 0, copy, 0, length);
+            return copy;
+        }
+
+        public String toString() {
+            return "count=" + count + " mean=" + getMean() + " p50=" + getPercentile(0.5)
+                + " p99=" + getPercentile(0.99);
+        }
+    }
+
+    //Copy of every metric at one moment, returned by snapshot()
+    public static class Snapshot {
+        private final long nodes;
+        private final Distribution[] latency;
+        private final Distribution[] visited;
+        private final Distribution pathDepth;
+        private final Distribution fanOut;
+
+        Snapshot(long nodes, Distribution[] latency, Distribution[] visited, Distribution pathDepth, Distribution fanOut) {
+            this.nodes = nodes;
+            this.latency = latency;
+            this.visited = visited;
+            this.pathDepth = pathDepth;
+            this.fanOut = fanOut;
+        }
+
+        //Returns the number of nodes in the tree, not counting the root
+        public long getNodeCount() {
+            return nodes;
+        }
+
+        public long getCount(Operation op) {
+            return latency[op.ordinal()].getCount();
+        }
+
+        //Returns op's latencies in nanoseconds
+        public Distribution getLatency(Operation op) {
+            return latency[op.ordinal()];
+        }
+
+        //Returns how many nodes each SEARCH, SEARCH_ALL or TRAVERSE visited; empty for other operations
+        public Distribution getVisited(Operation op) {
+            return visited[op.ordinal()];
+        }
+
+        //Returns how many levels each GET_PATH walked before it reached its node or a missing key
+        public Distribution getPathDepth() {
+            return pathDepth;
+        }
+
+        //Returns the distribution of child counts over every node, the root included
+        public Distribution getFanOut() {
+            return fanOut;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder("nodes=").append(nodes);
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (latency[i].getCount() > 0) {
+                    s.append('\n').append(OPERATIONS[i]).append(" latency ").append(latency[i]);
+                    if (visited[i].getCount() > 0) {
+                        s.append(" visited ").append(visited[i]);
+                    }
+                }
+            }
+            return s.append("\npath depth ").append(pathDepth).append("\nfan-out ").append(fanOut).toString();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * JMX view of a HashTreeMetrics, registered with HashTreeMetrics.register. Maps are keyed by
+ * HashTreeMetrics.Operation name; latencies are in nanoseconds.
+ */
+import java.util.Map;
+
+public interface HashTreeMetricsMXBean {
+    public long getNodeCount();
+    public Map<String, Long> getOperationCounts();
+    public Map<String, Double> getMeanLatencyNanos();
+    public Map<String, Long> getP99LatencyNanos();
+    public double getMeanSearchVisited();
+    public double getMeanTraverseVisited();
+    public double getMeanPathDepth();
+    //bucket b counts the nodes with 2^(b-1) to 2^b - 1 children; bucket 0 counts the leaves
+    public long[] getFanOutHistogram();
+    public void reset();
+}
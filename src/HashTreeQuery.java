@@ -0,0 +1,370 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Compiled path query over a HashTree. A query is a list of steps, each matching one level
+ * of keys from the top level down:
+ *   key(k)       the key k
+ *   any()        any one key
+ *   anyDepth()   any number of levels, even none
+ *   where(test)  any key test accepts; whereNode(test) also sees the key's subtree
+ * compile builds one from a pattern of steps separated by '/', where "*" is any(), "**" is
+ * anyDepth() and anything else is a String key, so the pattern for Teams, *, *, 3P% is
+ * root().key("Teams").any().any().key("3P%"). Every player on any team with a PTS node is
+ * root().key("Teams").any().whereNode((key, tree) -> tree.containsKey("PTS")).
+ *
+ * Matching walks down from the tree carrying the set of steps that could come next at each
+ * node, so a branch is dropped as soon as no step can match it. Where every step that could
+ * come next is a literal key, the node's children are not scanned at all, only looked up.
+ * A literal key right after "**" is looked up in the key index when the tree has one (see
+ * HashTree.buildIndex), so anyDepth().key("PTS") goes straight to the nodes holding PTS
+ * instead of walking everything above them. Queries are immutable and can be shared between
+ * threads.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+public final class HashTreeQuery {
+    //the set of steps still to match is a bit mask, with one bit for "every step matched"
+    static final int MAX_STEPS = 63;
+
+    private static final int KEY = 0;
+    private static final int ANY = 1;
+    private static final int ANY_DEPTH = 2;
+    private static final int TEST = 3;
+    private static final int NODE_TEST = 4;
+
+    private static final HashTreeQuery ROOT = new HashTreeQuery(new int[0], new Object[0]);
+
+    private final int[] kinds;
+    //the key, Predicate or BiPredicate of each step
+    private final Object[] args;
+
+    private HashTreeQuery(int[] kinds, Object[] args) {
+        this.kinds = kinds;
+        this.args = args;
+    }
+
+    //Returns the query with no steps, which matches only the tree it is run on
+    public static HashTreeQuery root() {
+        return ROOT;
+    }
+
+    /* Compiles a pattern of steps separated by '/': "*" matches any one key, "**" any number of
+     * levels, and anything else the String key it spells. Keys that are not Strings, or that
+     * contain '/', need key(Object) instead.
+     */
+    public static HashTreeQuery compile(String pattern) {
+        HashTreeQuery query = ROOT;
+        if (pattern.isEmpty()) {
+            return query;
+        }
+        int start = 0;
+        while (start <= pattern.length()) {
+            int end = pattern.indexOf('/', start);
+            if (end < 0) {
+                end = pattern.length();
+            }
+            String step = pattern.substring(start, end);
+            if (step.equals("*")) {
+                query = query.any();
+            }
+            else if (step.equals("**")) {
+                query = query.anyDepth();
+            }
+            else {
+                query = query.key(step);
+            }
+            start = end + 1;
+        }
+        return query;
+    }
+
+    //Returns this query followed by a step matching key
+    public HashTreeQuery key(Object key) {
+        return then(KEY, key);
+    }
+
+    //Returns this query followed by a step matching any one key
+    public HashTreeQuery any() {
+        return then(ANY, null);
+    }
+
+    //Returns this query followed by a step matching any number of levels, including none
+    public HashTreeQuery anyDepth() {
+        //a second "**" in a row matches nothing the first doesn't
+        if (kinds.length > 0 && kinds[kinds.length - 1] == ANY_DEPTH) {
+            return this;
+        }
+        return then(ANY_DEPTH, null);
+    }
+
+    //Returns this query followed by a step matching the keys test accepts
+    public HashTreeQuery where(Predicate test) {
+        return then(TEST, test);
+    }
+
+    //Returns this query followed by a step matching the keys whose key and subtree test accepts
+    public HashTreeQuery whereNode(BiPredicate test) {
+        return then(NODE_TEST, test);
+    }
+
+    //Returns every subtree the query matches in tree, each once, in no particular order
+    public Collection findAll(HashTree tree) {
+        Set found = Collections.newSetFromMap(new IdentityHashMap());
+        List result = new ArrayList();
+        run(tree, true, found, result);
+        return result;
+    }
+
+    /* Returns the path (a List of keys from tree's top level down) of every node the query
+     * matches in tree, in no particular order. Paths are rebuilt on the way down, so the key
+     * index is not used.
+     */
+    public List paths(HashTree tree) {
+        List result = new ArrayList();
+        run(tree, false, null, result);
+        return result;
+    }
+
+    //Returns true if the query matches at least one node in tree
+    public boolean matchesAny(HashTree tree) {
+        return !findAll(tree).isEmpty();
+    }
+
+    private HashTreeQuery then(int kind, Object arg) {
+        if (kinds.length == MAX_STEPS) {
+            throw new IllegalArgumentException("A query can have at most " + MAX_STEPS + " steps.");
+        }
+        int[] newKinds = new int[kinds.length + 1];
+        Object[] newArgs = new Object[args.length + 1];
+        System.arraycopy(kinds, 0, newKinds, 0, kinds.length);
+        System.arraycopy(args, 0, newArgs, 0, args.length);
+        newKinds[kinds.length] = kind;
+        newArgs[args.length] = arg;
+        return new HashTreeQuery(newKinds, newArgs);
+    }
+
+    /* Walks down from tree. Adds the matched subtrees to result, or their paths when nodes is
+     * false; found holds the subtrees already added, since with "**" a node can be reached
+     * more than once.
+     */
+    private void run(HashTree tree, boolean nodes, Set found, List result) {
+        long done = 1L << kinds.length;
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new Frame(null, null, tree, closure(1L)));
+        while (!stack.isEmpty()) {
+            Frame frame = (Frame) stack.pop();
+            HashTree node = frame.tree;
+            if ((frame.states & done) != 0) {
+                if (!nodes) {
+                    result.add(frame.path());
+                }
+                else if (found.add(node)) {
+                    result.add(node);
+                }
+            }
+            long live = frame.states & ~done;
+            if (live == 0 || node.data.isEmpty()) {
+                continue;
+            }
+            if (onlyKeys(live)) {
+                lookUp(frame, live, stack);
+            }
+            else if (nodes && node.index != null && indexable(live)) {
+                jump(frame, live, stack);
+            }
+            else {
+                scan(frame, live, stack);
+            }
+        }
+    }
+
+    //Follows each literal key in live with a single lookup
+    private void lookUp(Frame frame, long live, ArrayDeque stack) {
+        for (long rest = live; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            Object key = args[i];
+            if (sameKeyEarlier(live, i, key)) {
+                continue;
+            }
+            HashTree child = (HashTree) frame.tree.data.get(key);
+            if (child == null) {
+                continue;
+            }
+            long next = 0;
+            for (long other = rest; other != 0; other &= other - 1) {
+                int j = Long.numberOfTrailingZeros(other);
+                if (equal(args[j], key)) {
+                    next |= 1L << (j + 1);
+                }
+            }
+            stack.push(new Frame(frame, key, child, closure(next)));
+        }
+    }
+
+    /* live is a "**" at i and the literal key at i + 1: every node below frame holding that
+     * key is found in the index, so none of the levels between are walked.
+     */
+    private void jump(Frame frame, long live, ArrayDeque stack) {
+        int i = Long.numberOfTrailingZeros(live);
+        Object key = args[i + 1];
+        long next = closure(1L << (i + 2));
+        HashTree node = frame.tree;
+        Iterator iter = node.index.holdersOf(key).iterator();
+        while (iter.hasNext()) {
+            HashTree holder = (HashTree) iter.next();
+            if (isWithin(holder, node)) {
+                HashTree child = (HashTree) holder.data.get(key);
+                if (child != null) {
+                    stack.push(new Frame(null, key, child, next));
+                }
+            }
+        }
+    }
+
+    //Tries every child of frame against the steps in live
+    private void scan(Frame frame, long live, ArrayDeque stack) {
+        Iterator iter = frame.tree.data.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            Object key = entry.getKey();
+            HashTree child = (HashTree) entry.getValue();
+            long next = 0;
+            for (long rest = live; rest != 0; rest &= rest - 1) {
+                int i = Long.numberOfTrailingZeros(rest);
+                if (kinds[i] == ANY_DEPTH) {
+                    next |= 1L << i;
+                }
+                else if (matches(i, key, child)) {
+                    next |= 1L << (i + 1);
+                }
+            }
+            if (next != 0) {
+                stack.push(new Frame(frame, key, child, closure(next)));
+            }
+        }
+    }
+
+    private boolean matches(int step, Object key, HashTree child) {
+        switch (kinds[step]) {
+            case KEY:
+                return equal(args[step], key);
+            case TEST:
+                return ((Predicate) args[step]).test(key);
+            case NODE_TEST:
+                return ((BiPredicate) args[step]).test(key, child);
+            default:
+                return true;
+        }
+    }
+
+    //Adds the step after each "**" in states, since "**" can match no levels at all
+    private long closure(long states) {
+        for (int i = 0; i < kinds.length; i++) {
+            if ((states & (1L << i)) != 0 && kinds[i] == ANY_DEPTH) {
+                states |= 1L << (i + 1);
+            }
+        }
+        return states;
+    }
+
+    private boolean onlyKeys(long live) {
+        for (long rest = live; rest != 0; rest &= rest - 1) {
+            if (kinds[Long.numberOfTrailingZeros(rest)] != KEY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //True if live is exactly a "**" followed by a literal key
+    private boolean indexable(long live) {
+        int i = Long.numberOfTrailingZeros(live);
+        return live == (3L << i) && kinds[i] == ANY_DEPTH && kinds[i + 1] == KEY;
+    }
+
+    private boolean sameKeyEarlier(long live, int step, Object key) {
+        for (long rest = live & ((1L << step) - 1); rest != 0; rest &= rest - 1) {
+            if (equal(args[Long.numberOfTrailingZeros(rest)], key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //True if node is ancestor or lies below it
+    private static boolean isWithin(HashTree node, HashTree ancestor) {
+        for (HashTree n = node; n != null; n = n.parent) {
+            if (n == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < kinds.length; i++) {
+            if (i > 0) {
+                s.append('/');
+            }
+            switch (kinds[i]) {
+                case KEY:
+                    s.append(args[i]);
+                    break;
+                case ANY:
+                    s.append('*');
+                    break;
+                case ANY_DEPTH:
+                    s.append("**");
+                    break;
+                default:
+                    s.append('?');
+            }
+        }
+        return s.toString();
+    }
+
+    //A node reached during a query, with the states it was reached in and the way back up
+    private static class Frame {
+        final Frame parent;
+        final Object key;
+        final HashTree tree;
+        final long states;
+
+        Frame(Frame parent, Object key, HashTree tree, long states) {
+            this.parent = parent;
+            this.key = key;
+            this.tree = tree;
+            this.states = states;
+        }
+
+        //Keys from the top level down to this frame's node
+        List path() {
+            int depth = 0;
+            for (Frame f = this; f.parent != null; f = f.parent) {
+                depth++;
+            }
+            Object[] keys = new Object[depth];
+            Frame f = this;
+            for (int i = depth - 1; i >= 0; i--) {
+                keys[i] = f.key;
+                f = f.parent;
+            }
+            return new ArrayList(Arrays.asList(keys));
+        }
+    }
+}
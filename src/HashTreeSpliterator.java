@@ -0,0 +1,166 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Lazy depth-first Spliterator behind HashTree.paths() and HashTree.nodes(). It keeps only
+ * a stack of child iterators for the walk in progress, so memory is bounded by the depth of
+ * the tree. trySplit hands half of the sibling subtrees not yet started to the new
+ * Spliterator; when only one is left it steps down into that subtree's children, so a
+ * narrow top level still splits. Sibling entries are read straight from the node's map until
+ * the first split, which copies the ones not yet started into an array; the only copying done
+ * is that level's entries, at a split.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+class HashTreeSpliterator implements Spliterator {
+    //yield a List of keys for every root-to-leaf path
+    static final int PATHS = 0;
+    //yield a HashTree.Node for every node, parents before children
+    static final int NODES = 1;
+
+    private final int mode;
+    //keys from the tree's root down to the parent of roots
+    private List prefix;
+    //sibling entries not yet started, read lazily; null once trySplit has copied them to roots
+    private Iterator unsplit;
+    //sibling entries this Spliterator covers, from next (inclusive) to hi (exclusive)
+    private Object[] roots;
+    private int next;
+    private int hi;
+    //nodes stepped over by trySplit that still have to be yielded (NODES only)
+    private ArrayList pending;
+    //walk in progress below roots[next - 1]
+    private final ArrayDeque stack = new ArrayDeque();
+    private final ArrayList path = new ArrayList();
+
+    HashTreeSpliterator(int mode, HashTree tree) {
+        this(mode, new ArrayList(), null, 0, 0);
+        unsplit = tree.data.entrySet().iterator();
+    }
+
+    private HashTreeSpliterator(int mode, List prefix, Object[] roots, int next, int hi) {
+        this.mode = mode;
+        this.prefix = prefix;
+        this.roots = roots;
+        this.next = next;
+        this.hi = hi;
+    }
+
+    public boolean tryAdvance(Consumer action) {
+        if (pending != null && !pending.isEmpty()) {
+            action.accept(pending.remove(0));
+            return true;
+        }
+        while (true) {
+            Map.Entry entry;
+            if (stack.isEmpty()) {
+                if (unsplit != null) {
+                    if (!unsplit.hasNext()) {
+                        return false;
+                    }
+                    entry = (Map.Entry) unsplit.next();
+                }
+                else if (next >= hi) {
+                    return false;
+                }
+                else {
+                    entry = (Map.Entry) roots[next++];
+                }
+            }
+            else {
+                Iterator iter = (Iterator) stack.peek();
+                if (!iter.hasNext()) {
+                    stack.pop();
+                    path.remove(path.size() - 1);
+                    continue;
+                }
+                entry = (Map.Entry) iter.next();
+            }
+            Object key = entry.getKey();
+            HashTree child = (HashTree) entry.getValue();
+            boolean leaf = child.data.isEmpty();
+            if (mode == NODES) {
+                action.accept(new HashTree.Node(key, child, prefix.size() + path.size() + 1));
+                if (!leaf) {
+                    descend(key, child);
+                }
+                return true;
+            }
+            if (leaf) {
+                List result = new ArrayList(prefix.size() + path.size() + 1);
+                result.addAll(prefix);
+                result.addAll(path);
+                result.add(key);
+                action.accept(result);
+                return true;
+            }
+            descend(key, child);
+        }
+    }
+
+    private void descend(Object key, HashTree child) {
+        path.add(key);
+        stack.push(child.data.entrySet().iterator());
+    }
+
+    public Spliterator trySplit() {
+        if (unsplit != null) {
+            ArrayList rest = new ArrayList();
+            while (unsplit.hasNext()) {
+                rest.add(unsplit.next());
+            }
+            unsplit = null;
+            roots = rest.toArray();
+            next = 0;
+            hi = roots.length;
+        }
+        if (!stack.isEmpty()) {
+            //the subtree in progress stays here; only untouched siblings can be handed off
+            return splitRoots();
+        }
+        //step down through a narrow level so there is something to split
+        while (hi - next == 1) {
+            Map.Entry entry = (Map.Entry) roots[next];
+            HashTree child = (HashTree) entry.getValue();
+            if (child.data.isEmpty()) {
+                return null;
+            }
+            if (mode == NODES) {
+                if (pending == null) {
+                    pending = new ArrayList();
+                }
+                pending.add(new HashTree.Node(entry.getKey(), child, prefix.size() + 1));
+            }
+            List newPrefix = new ArrayList(prefix.size() + 1);
+            newPrefix.addAll(prefix);
+            newPrefix.add(entry.getKey());
+            prefix = newPrefix;
+            roots = child.data.entrySet().toArray();
+            next = 0;
+            hi = roots.length;
+        }
+        return splitRoots();
+    }
+
+    private Spliterator splitRoots() {
+        if (hi - next < 2) {
+            return null;
+        }
+        int mid = (next + hi) >>> 1;
+        HashTreeSpliterator split = new HashTreeSpliterator(mode, prefix, roots, mid, hi);
+        hi = mid;
+        return split;
+    }
+
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    public int characteristics() {
+        return NONNULL;
+    }
+}
@@ -1,5 +1,3 @@
-package HashTree;
-
 /*
  * To change this license header, choose License Headers in Project Properties.
  * To change this template file, choose Tools | Templates
@@ -14,4 +12,23 @@ public interface HashTreeTraverser {
     public void addNode(Object node, HashTree tree); 
     public void subtractNode(); 
     public void processPath(); 
+
+    /* Called by HashTree.traverse in place of addNode. The default just calls addNode and
+     * continues; visitors that want to prune or end the traversal early override it and
+     * return SKIP_SUBTREE or STOP instead of throwing out of addNode.
+     */
+    public default TraversalControl visitNode(Object node, HashTree tree) {
+        addNode(node, tree);
+        return TraversalControl.CONTINUE;
+    }
+
+    //Tells the traversal what to do after a node has been visited
+    public enum TraversalControl {
+        //descend into the node's subtree as usual
+        CONTINUE,
+        //do not descend; subtractNode is still called for the node, processPath is not
+        SKIP_SUBTREE,
+        //end the traversal right away; no further callbacks are made
+        STOP
+    }
 }
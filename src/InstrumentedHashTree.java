@@ -0,0 +1,268 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * HashTree that records HashTreeMetrics about itself: how long add, remove, path lookups,
+ * search, searchAll and traverse take, how many nodes each search and traversal visited, how
+ * many levels each path lookup walked, and how many nodes the tree holds with what fan-out.
+ * Every node is an InstrumentedHashTree sharing one HashTreeMetrics (createNewTree hands out
+ * new ones), so plain HashTrees carry none of this. Get one from create().
+ *
+ * The node count and fan-out only follow nodes attached under the root, and a subtree handed
+ * to add or set is copied in unless it is a detached node of the same tree, so they see every
+ * node. Changes made directly through entrySet(), keySet() or values() are not seen. Java
+ * serialization writes a plain HashTree.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+public class InstrumentedHashTree extends HashTree {
+    private final transient Shared shared;
+
+    private InstrumentedHashTree(Shared shared) {
+        this.shared = shared;
+    }
+
+    //Returns an empty tree with its own metrics
+    public static InstrumentedHashTree create() {
+        Shared shared = new Shared();
+        shared.root = new InstrumentedHashTree(shared);
+        shared.metrics.rootCreated();
+        return shared.root;
+    }
+
+    //Returns the metrics of the tree this node belongs to
+    public HashTreeMetrics getMetrics() {
+        return shared.metrics;
+    }
+
+    protected HashTree createNewTree() {
+        return new InstrumentedHashTree(shared);
+    }
+    protected HashTree createNewTree(Object key) {
+        HashTree tree = createNewTree();
+        tree.add(key);
+        return tree;
+    }
+    protected HashTree createNewTree(Collection values) {
+        HashTree tree = createNewTree();
+        tree.add(values);
+        return tree;
+    }
+
+    public HashTree add(Object key) {
+        long start = System.nanoTime();
+        HashTree tree = super.add(key);
+        shared.metrics.record(HashTreeMetrics.Operation.ADD, start);
+        return tree;
+    }
+
+    public Object remove(Object key) {
+        long start = System.nanoTime();
+        Object tree = super.remove(key);
+        shared.metrics.record(HashTreeMetrics.Operation.REMOVE, start);
+        return tree;
+    }
+
+    protected HashTree getTreePath(Collection treePath) {
+        long start = System.nanoTime();
+        HashTree tree = this;
+        int depth = 0;
+        Iterator iter = treePath.iterator();
+        while (iter.hasNext() && tree != null) {
+            tree = tree.getTree(iter.next());
+            depth++;
+        }
+        shared.metrics.record(HashTreeMetrics.Operation.GET_PATH, start);
+        shared.metrics.recordPathDepth(depth);
+        return tree;
+    }
+
+    protected HashTree getTreePath(Object[] treePath) {
+        long start = System.nanoTime();
+        HashTree tree = this;
+        int depth = 0;
+        while (depth < treePath.length && tree != null) {
+            tree = tree.getTree(treePath[depth++]);
+        }
+        shared.metrics.record(HashTreeMetrics.Operation.GET_PATH, start);
+        shared.metrics.recordPathDepth(depth);
+        return tree;
+    }
+
+    //Same as HashTree.search, counting the top-level lookup as one visited node
+    public HashTree search(Object key) {
+        long start = System.nanoTime();
+        HashTree result = (HashTree) data.get(key);
+        long visited = 1;
+        if (result == null) {
+            if (isIndexed()) {
+                result = index.find(key);
+            }
+            else {
+                TreeSearcher searcher = new TreeSearcher(key, null);
+                super.traverse(searcher);
+                result = searcher.getResult();
+                visited += searcher.visited;
+            }
+        }
+        shared.metrics.record(HashTreeMetrics.Operation.SEARCH, start, visited);
+        return result;
+    }
+
+    public Collection searchAll(Object key) {
+        long start = System.nanoTime();
+        Collection result;
+        long visited = 1;
+        if (isIndexed()) {
+            result = index.findAll(key);
+        }
+        else {
+            result = new ArrayList();
+            HashTree found = (HashTree) data.get(key);
+            if (found != null) {
+                result.add(found);
+            }
+            TreeSearcher searcher = new TreeSearcher(key, result);
+            super.traverse(searcher);
+            visited += searcher.visited;
+        }
+        shared.metrics.record(HashTreeMetrics.Operation.SEARCH_ALL, start, visited);
+        return result;
+    }
+
+    public void traverse(HashTreeTraverser visitor) {
+        long start = System.nanoTime();
+        CountingTraverser counter = new CountingTraverser(visitor);
+        super.traverse(counter);
+        shared.metrics.record(HashTreeMetrics.Operation.TRAVERSE, start, counter.visited);
+    }
+
+    protected void putNode(Object key, HashTree tree) {
+        InstrumentedHashTree node = adopt(tree);
+        int before = data.size();
+        HashTree previous = (HashTree) data.get(key);
+        super.putNode(key, node);
+        if (previous != node && isAttached()) {
+            shared.metrics.fanOutChanged(before, data.size());
+            count(previous, -1);
+            count(node, 1);
+        }
+    }
+
+    protected HashTree removeNode(Object key) {
+        int before = data.size();
+        HashTree previous = super.removeNode(key);
+        if (previous != null && isAttached()) {
+            shared.metrics.fanOutChanged(before, data.size());
+            count(previous, -1);
+        }
+        return previous;
+    }
+
+    public void clear() {
+        if (isAttached()) {
+            Iterator iter = data.values().iterator();
+            while (iter.hasNext()) {
+                count((HashTree) iter.next(), -1);
+            }
+            shared.metrics.fanOutChanged(data.size(), 0);
+        }
+        super.clear();
+    }
+
+    public void replaceKey(Object currentKey, Object newKey) {
+        int before = data.size();
+        HashTree moved = (HashTree) data.get(currentKey);
+        HashTree previous = (HashTree) data.get(newKey);
+        super.replaceKey(currentKey, newKey);
+        if (isAttached()) {
+            shared.metrics.fanOutChanged(before, data.size());
+            if (previous != moved) {
+                count(previous, -1);
+            }
+        }
+    }
+
+    //Serialized as a plain HashTree, since the metrics are not
+    private Object writeReplace() {
+        HashTree copy = new HashTree();
+        copy.add(this);
+        return copy;
+    }
+
+    //Returns tree if it can be attached as is, otherwise a detached copy of it in this tree
+    private InstrumentedHashTree adopt(HashTree tree) {
+        if (tree instanceof InstrumentedHashTree && ((InstrumentedHashTree) tree).shared == shared
+                && tree.parent == null && tree != shared.root) {
+            return (InstrumentedHashTree) tree;
+        }
+        InstrumentedHashTree copy = new InstrumentedHashTree(shared);
+        if (tree != null) {
+            copy.add(tree);
+        }
+        return copy;
+    }
+
+    //True if this node hangs under the root of its tree
+    private boolean isAttached() {
+        HashTree node = this;
+        while (node.parent != null) {
+            node = node.parent;
+        }
+        return node == shared.root;
+    }
+
+    //Adds (sign 1) or removes (sign -1) every node of tree to or from the node count and fan-out
+    private void count(HashTree tree, int sign) {
+        if (tree == null) {
+            return;
+        }
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            HashTree node = (HashTree) stack.pop();
+            shared.metrics.nodeChanged(node.data.size(), sign);
+            Iterator iter = node.data.values().iterator();
+            while (iter.hasNext()) {
+                HashTree child = (HashTree) iter.next();
+                if (child != null) {
+                    stack.push(child);
+                }
+            }
+        }
+    }
+
+    //State shared by every node of one tree
+    private static class Shared {
+        final HashTreeMetrics metrics = new HashTreeMetrics();
+        InstrumentedHashTree root;
+    }
+
+    //Passes every callback on to visitor, counting the nodes visited
+    private static class CountingTraverser implements HashTreeTraverser {
+        private final HashTreeTraverser visitor;
+        long visited;
+
+        CountingTraverser(HashTreeTraverser visitor) {
+            this.visitor = visitor;
+        }
+
+        public TraversalControl visitNode(Object node, HashTree tree) {
+            visited++;
+            return visitor.visitNode(node, tree);
+        }
+
+        public void addNode(Object node, HashTree tree) {
+            visitor.addNode(node, tree);
+        }
+
+        public void subtractNode() {
+            visitor.subtractNode();
+        }
+
+        public void processPath() {
+            visitor.processPath();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * HashTree whose changes are recorded in a HashTreeLog. Every node is a LoggedHashTree
+ * (createNewTree hands out new ones), and every change that reaches the tree through
+ * putNode, removeNode, clear or replaceKey appends one record to the log naming the path of
+ * keys from the root and what was done there, so add, set, remove and replaceKey are all
+ * covered. Get one from HashTreeLog.open, which replays the log first.
+ *
+ * The log has to see every change, so a subtree handed to add or set is copied in unless it
+ * is a detached LoggedHashTree of the same log; afterwards changes made through the original
+ * object do not reach this tree. Changes made to a subtree after it was removed are not
+ * logged, and neither are changes made directly through entrySet(), keySet() or values().
+ * Java serialization writes a plain HashTree, since the log does not travel with it.
+ */
+import java.util.Collection;
+
+public class LoggedHashTree extends HashTree {
+    //log every node of this tree records its changes in
+    final transient HashTreeLog log;
+    //key this node is attached under in its parent
+    transient Object key;
+
+    LoggedHashTree(HashTreeLog log) {
+        this.log = log;
+    }
+
+    //Returns the log this tree records its changes in
+    public HashTreeLog getLog() {
+        return log;
+    }
+
+    protected HashTree createNewTree() {
+        return new LoggedHashTree(log);
+    }
+    protected HashTree createNewTree(Object key) {
+        HashTree tree = createNewTree();
+        tree.add(key);
+        return tree;
+    }
+    protected HashTree createNewTree(Collection values) {
+        HashTree tree = createNewTree();
+        tree.add(values);
+        return tree;
+    }
+
+    protected void putNode(Object key, HashTree tree) {
+        LoggedHashTree node = adopt(tree);
+        super.putNode(key, node);
+        node.key = key;
+        Object[] path = path(1);
+        if (path != null) {
+            path[path.length - 1] = key;
+            record(HashTreeLog.OP_PUT, path, null, null, node);
+        }
+    }
+
+    protected HashTree removeNode(Object key) {
+        HashTree previous = super.removeNode(key);
+        Object[] path = previous != null ? path(1) : null;
+        if (path != null) {
+            path[path.length - 1] = key;
+            record(HashTreeLog.OP_REMOVE, path, null, null, null);
+        }
+        return previous;
+    }
+
+    public void clear() {
+        super.clear();
+        Object[] path = path(0);
+        if (path != null) {
+            record(HashTreeLog.OP_CLEAR, path, null, null, null);
+        }
+    }
+
+    public void replaceKey(Object currentKey, Object newKey) {
+        super.replaceKey(currentKey, newKey);
+        HashTree moved = getTree(newKey);
+        if (moved instanceof LoggedHashTree) {
+            ((LoggedHashTree) moved).key = newKey;
+        }
+        Object[] path = path(0);
+        if (path != null) {
+            record(HashTreeLog.OP_REPLACE, path, currentKey, newKey, null);
+        }
+    }
+
+    //Appends the record for a change that is complete, then lets the log compact if it is due
+    private void record(int op, Object[] path, Object first, Object second, HashTree content) {
+        log.append(op, path, first, second, content);
+        log.compactIfDue();
+    }
+
+    //Serialized as a plain HashTree; a copy read back elsewhere has no log to write to
+    private Object writeReplace() {
+        HashTree copy = new HashTree();
+        copy.add(this);
+        return copy;
+    }
+
+    //Returns tree if it can be attached as is, otherwise a detached copy of it in this log
+    private LoggedHashTree adopt(HashTree tree) {
+        if (tree instanceof LoggedHashTree && ((LoggedHashTree) tree).log == log
+                && tree.parent == null && tree != log.root) {
+            return (LoggedHashTree) tree;
+        }
+        LoggedHashTree copy = new LoggedHashTree(log);
+        if (tree != null) {
+            copy.add(tree);
+        }
+        return copy;
+    }
+
+    /* Returns the keys from the root down to this node, with extra empty slots at the end, or
+     * null when the change should not be logged: the node is not attached under the log's
+     * root, or the log is replaying.
+     */
+    private Object[] path(int extra) {
+        if (log.replaying) {
+            return null;
+        }
+        int depth = 0;
+        for (HashTree node = this; node != log.root; node = node.parent) {
+            if (node.parent == null) {
+                return null;
+            }
+            depth++;
+        }
+        Object[] path = new Object[depth + extra];
+        HashTree node = this;
+        for (int i = depth - 1; i >= 0; i--) {
+            path[i] = ((LoggedHashTree) node).key;
+            node = node.parent;
+        }
+        return path;
+    }
+}
@@ -0,0 +1,105 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Hash table behind a LongNodeMap that has outgrown its inline entries. Long keys are kept
+ * unboxed in a long[] beside the values, so a child costs about 16 bytes (8 for the key, 4 for
+ * the value slot, at up to 3/4 load) instead of the 48 or so of a HashMap entry plus its boxed
+ * Long. Only java.lang.Long keys are stored unboxed: an Integer 5 is not equal to a Long 5, so
+ * other keys go to the side map and keep their type. Iterating boxes each key.
+ */
+class LongKeyTable extends OpenKeyTable {
+    //multiplier for Fibonacci hashing, so sequential ids spread across the table
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private transient long[] keys;
+
+    //Returns the value for key, or null
+    public Object get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : unmask(values[i]);
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    //Maps key to value without boxing key, returning the previous value
+    public Object put(long key, Object value) {
+        int i = indexOf(key);
+        if (i >= 0) {
+            Object previous = unmask(values[i]);
+            values[i] = mask(value);
+            return previous;
+        }
+        ensureRoom();
+        int mask = values.length - 1;
+        for (i = slot(key, mask); values[i] != null && values[i] != DELETED; i = (i + 1) & mask) {
+        }
+        keys[i] = key;
+        occupy(i, value);
+        return null;
+    }
+
+    boolean owns(Object key) {
+        return key != null && key.getClass() == Long.class;
+    }
+
+    int find(Object key) {
+        return indexOf(((Long) key).longValue());
+    }
+
+    Object putOwned(Object key, Object value) {
+        return put(((Long) key).longValue(), value);
+    }
+
+    Object keyAt(int slot) {
+        return Long.valueOf(keys[slot]);
+    }
+
+    void forgetKey(int slot) {
+    }
+
+    void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        used = size;
+        int mask = capacity - 1;
+        for (int j = 0; oldValues != null && j < oldValues.length; j++) {
+            if (oldValues[j] != null && oldValues[j] != DELETED) {
+                int i = slot(oldKeys[j], mask);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    void releaseKeys() {
+        keys = null;
+    }
+
+    private int indexOf(long key) {
+        Object[] v = values;
+        if (v == null) {
+            return -1;
+        }
+        int mask = v.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            Object value = v[i];
+            if (value == null) {
+                return -1;
+            }
+            if (keys[i] == key && value != DELETED) {
+                return i;
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        int h = (int) ((key * GOLDEN) >>> 32);
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,35 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Node map for levels keyed by whole numbers such as jersey numbers, game ids or stat indexes.
+ * Small nodes keep their entries inline like any CompactNodeMap; a node that outgrows them
+ * moves into a LongKeyTable, which stores Long keys unboxed in a long[] instead of one
+ * HashMap entry and one boxed Long per child. get(long), containsKey(long) and
+ * put(long, Object) reach that table without boxing the key.
+ */
+import java.util.Map;
+
+public class LongNodeMap extends CompactNodeMap {
+    public LongNodeMap() {
+    }
+
+    protected Map createLargeMap() {
+        return new LongKeyTable();
+    }
+
+    //Returns the value for key, or null
+    public Object get(long key) {
+        Map large = largeMap();
+        return large != null ? ((LongKeyTable) large).get(key) : get(Long.valueOf(key));
+    }
+
+    public boolean containsKey(long key) {
+        Map large = largeMap();
+        return large != null ? ((LongKeyTable) large).containsKey(key) : containsKey(Long.valueOf(key));
+    }
+
+    //Maps key (as a Long) to value, returning the previous value
+    public Object put(long key, Object value) {
+        Map large = largeMap();
+        return large != null ? ((LongKeyTable) large).put(key, value) : put(Long.valueOf(key), value);
+    }
+}
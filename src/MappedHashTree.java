@@ -0,0 +1,324 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Read-only HashTree over a file written by HashTree.writeTo, memory-mapped with
+ * FileChannel.map. Only the key dictionary is decoded when the file is opened; every node
+ * is a small view holding the offset of its record, and getTree, list, containsKey, search
+ * and traverse read children straight out of the mapping. Many JVMs opening the same file
+ * share its pages through the OS page cache, and the tree itself takes no heap.
+ * Any attempt to change the tree throws UnsupportedOperationException.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class MappedHashTree extends HashTree {
+    //size of each mapped region; FileChannel.map cannot map more than 2GB at once
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final Snapshot snapshot;
+
+    private MappedHashTree(Snapshot snapshot, long offset) {
+        super(offset < 0 ? Collections.EMPTY_MAP : new NodeMap(snapshot, offset));
+        this.snapshot = snapshot;
+    }
+
+    //Maps file and returns its root without verifying the checksum
+    public static MappedHashTree open(File file) throws IOException {
+        return open(file, false);
+    }
+
+    /* Maps file and returns its root. With verify set the whole file is read once to check
+     * its CRC32, which costs a full pass; without it opening touches only the dictionary.
+     */
+    public static MappedHashTree open(File file, boolean verify) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, length - start));
+            }
+            Snapshot snapshot = new Snapshot(segments, length);
+            HashTreeCodec.Header header = HashTreeCodec.readHeader(new HashTreeCodec.In(snapshot.stream(0)));
+            snapshot.keys = header.keys;
+            snapshot.sorted = header.version > 1;
+            for (int i = 0; i < header.keys.length; i++) {
+                snapshot.ids.put(header.keys[i], Integer.valueOf(i));
+            }
+            long trailer = length - HashTreeCodec.TRAILER_LENGTH - (header.checksum ? 4 : 0);
+            if (verify && header.checksum) {
+                snapshot.verify(trailer + HashTreeCodec.TRAILER_LENGTH);
+            }
+            long rootOffset = 0;
+            for (int i = 0; i < 8; i++) {
+                rootOffset = (rootOffset << 8) | snapshot.get(trailer + i);
+            }
+            return new MappedHashTree(snapshot, rootOffset);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    //Misses are answered from the key dictionary without walking the tree
+    public HashTree search(Object key) {
+        if (!snapshot.ids.containsKey(key)) {
+            return null;
+        }
+        return super.search(key);
+    }
+
+    public Collection searchAll(Object key) {
+        if (!snapshot.ids.containsKey(key)) {
+            return Collections.EMPTY_LIST;
+        }
+        return super.searchAll(key);
+    }
+
+    //Node views are created on every lookup, so there is nothing to cache a digest on
+    protected boolean cachesDigest() {
+        return false;
+    }
+
+    //Same for node counts; they are taken by walking the mapping
+    protected boolean tracksStats() {
+        return false;
+    }
+
+    protected HashTree createNewTree() {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    protected HashTree createNewTree(Object key) {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    protected HashTree createNewTree(Collection values) {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    protected void putNode(Object key, HashTree tree) {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    protected HashTree removeNode(Object key) {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    public void clear() {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    public void replaceKey(Object currentKey, Object newKey) {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+    public void buildIndex() {
+        throw new UnsupportedOperationException("MappedHashTree is read-only.");
+    }
+
+    //The mapped file plus its decoded key dictionary, shared by every node view
+    private static class Snapshot {
+        final MappedByteBuffer[] segments;
+        final long length;
+        Object[] keys;
+        //whether records have fixed-width children sorted by key id (version 2 on)
+        boolean sorted;
+        final Map ids = new HashMap();
+
+        Snapshot(MappedByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+
+        int get(long position) {
+            return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK)) & 0xff;
+        }
+
+        //Reads a varint at position[0] and moves position[0] past it
+        long varint(long[] position) {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = get(position[0]++);
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+
+        //Reads a record field width bytes wide at position[0], or a varint for a width of 0
+        long field(long[] position, int width) {
+            if (width == 0) {
+                return varint(position);
+            }
+            long v = fixed(position[0], width);
+            position[0] += width;
+            return v;
+        }
+
+        long fixed(long position, int width) {
+            long v = 0;
+            for (int i = 0; i < width; i++) {
+                v = (v << 8) | get(position + i);
+            }
+            return v;
+        }
+
+        InputStream stream(final long start) {
+            return new InputStream() {
+                long position = start;
+
+                public int read() {
+                    return position < length ? get(position++) : -1;
+                }
+                public int read(byte[] b, int off, int len) {
+                    if (position >= length) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(len, length - position);
+                    for (int i = 0; i < n; i++) {
+                        b[off + i] = (byte) get(position++);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        void verify(long end) throws IOException {
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < segments.length && ((long) i << SEGMENT_BITS) < end; i++) {
+                ByteBuffer segment = segments[i].duplicate();
+                long start = (long) i << SEGMENT_BITS;
+                segment.limit((int) Math.min(segment.capacity(), end - start));
+                crc.update(segment);
+            }
+            long stored = 0;
+            for (int i = 0; i < 4; i++) {
+                stored = (stored << 8) | get(end + i);
+            }
+            if (stored != crc.getValue()) {
+                throw new StreamCorruptedException("HashTree file checksum mismatch.");
+            }
+        }
+    }
+
+    //Read-only Map view of one record's children, decoded on demand
+    private static class NodeMap extends AbstractMap {
+        final Snapshot snapshot;
+        final long offset;
+
+        NodeMap(Snapshot snapshot, long offset) {
+            this.snapshot = snapshot;
+            this.offset = offset;
+        }
+
+        public int size() {
+            return (int) snapshot.varint(new long[] { offset });
+        }
+
+        public boolean isEmpty() {
+            return snapshot.get(offset) == 0;
+        }
+
+        public boolean containsKey(Object key) {
+            return find(key) != Long.MIN_VALUE;
+        }
+
+        public Object get(Object key) {
+            long child = find(key);
+            return child == Long.MIN_VALUE ? null : new MappedHashTree(snapshot, child);
+        }
+
+        /* Returns the record offset of key's subtree, -1 for a leaf, Long.MIN_VALUE if absent.
+         * Children are sorted by key id and all the same width, so they are binary-searched;
+         * version 1 records are scanned.
+         */
+        private long find(Object key) {
+            Integer id = (Integer) snapshot.ids.get(key);
+            if (id == null) {
+                return Long.MIN_VALUE;
+            }
+            int wanted = id.intValue();
+            long[] position = { offset };
+            long count = snapshot.varint(position);
+            if (!snapshot.sorted) {
+                for (long i = 0; i < count; i++) {
+                    int childId = (int) snapshot.varint(position);
+                    long delta = snapshot.varint(position);
+                    if (childId == wanted) {
+                        return delta == 0 ? -1 : offset - delta;
+                    }
+                }
+                return Long.MIN_VALUE;
+            }
+            int idWidth = snapshot.get(position[0]);
+            int deltaWidth = snapshot.get(position[0] + 1);
+            long entries = position[0] + 2;
+            int entry = idWidth + deltaWidth;
+            long lo = 0;
+            long hi = count - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                long child = entries + mid * entry;
+                long midId = snapshot.fixed(child, idWidth);
+                if (midId < wanted) {
+                    lo = mid + 1;
+                }
+                else if (midId > wanted) {
+                    hi = mid - 1;
+                }
+                else {
+                    long delta = snapshot.fixed(child + idWidth, deltaWidth);
+                    return delta == 0 ? -1 : offset - delta;
+                }
+            }
+            return Long.MIN_VALUE;
+        }
+
+        public Set entrySet() {
+            return new AbstractSet() {
+                public int size() {
+                    return NodeMap.this.size();
+                }
+                public Iterator iterator() {
+                    return new Iterator() {
+                        final long[] position = { offset };
+                        final long count = snapshot.varint(position);
+                        //field widths, 0 for the varints of a version 1 record
+                        final int idWidth = snapshot.sorted ? snapshot.get(position[0]++) : 0;
+                        final int deltaWidth = snapshot.sorted ? snapshot.get(position[0]++) : 0;
+                        long index;
+
+                        public boolean hasNext() {
+                            return index < count;
+                        }
+                        public Object next() {
+                            if (index >= count) {
+                                throw new NoSuchElementException();
+                            }
+                            index++;
+                            Object key = snapshot.keys[(int) snapshot.field(position, idWidth)];
+                            long delta = snapshot.field(position, deltaWidth);
+                            return new SimpleImmutableEntry(key, new MappedHashTree(snapshot, delta == 0 ? -1 : offset - delta));
+                        }
+                        public void remove() {
+                            throw new UnsupportedOperationException("MappedHashTree is read-only.");
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
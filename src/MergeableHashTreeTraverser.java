@@ -0,0 +1,21 @@
+/*
+ * HashTreeTraverser whose work can be split across threads by HashTree.parallelTraverse.
+ * Each worker thread gets its own copy from fork(), walks one or more subtrees with the
+ * usual addNode/subtractNode/processPath callbacks, and is folded back into the visitor
+ * that forked it with merge().
+ */
+
+/**
+ *
+ * @author matthewprom
+ */
+public interface MergeableHashTreeTraverser extends HashTreeTraverser {
+    /* Returns a new visitor positioned at the same path as this one (so its depth and path
+     * state are right for the subtree it will be handed) but holding no results yet.
+     */
+    public MergeableHashTreeTraverser fork(); 
+    /* Adds the results gathered by a visitor returned from fork() into this one. Called on the
+     * forking visitor's thread, once per fork, in the order the subtrees appear in the tree.
+     */
+    public void merge(MergeableHashTreeTraverser other); 
+}
@@ -0,0 +1,178 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Read-only copy of a HashTree kept outside the Java heap, in direct ByteBuffers (see
+ * OffHeapStore for the layout). Every distinct key is stored once in an off-heap dictionary
+ * and every node is a record of key ids and child offsets, so a tree of millions of nodes
+ * costs the garbage collector a handful of objects instead of a map and an entry per node.
+ * Nodes are small views holding the offset of their record, created as getTree, list,
+ * containsKey, search and traverse reach them; a child is found by one dictionary probe and
+ * a binary search of its parent's record. totalSize(), leafCount() and height() are stored
+ * in each record. Get one from copyOf; any attempt to change it throws
+ * UnsupportedOperationException. The off-heap memory is released once the tree and every
+ * node taken from it are unreachable. Java serialization writes a plain HashTree.
+ */
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+public class OffHeapHashTree extends HashTree {
+    private final transient OffHeapStore store;
+    //offset of this node's record, -1 for a leaf
+    private final transient long offset;
+
+    private OffHeapHashTree(OffHeapStore store, long offset) {
+        super(offset < 0 ? Collections.EMPTY_MAP : new NodeMap(store, offset));
+        this.store = store;
+        this.offset = offset;
+    }
+
+    /* Copies tree off the heap. Throws IllegalArgumentException if a key is none of String,
+     * Integer, Long or the other types HashTreeCodec writes, and is not Serializable either.
+     */
+    public static OffHeapHashTree copyOf(HashTree tree) {
+        OffHeapStore store = OffHeapStore.build(tree);
+        return new OffHeapHashTree(store, store.root);
+    }
+
+    //Returns the number of bytes of direct memory the whole tree takes
+    public long offHeapBytes() {
+        return store.size;
+    }
+
+    public long totalSize() {
+        return offset < 0 ? 0 : store.below(offset);
+    }
+
+    public long leafCount() {
+        return offset < 0 ? 0 : store.leaves(offset);
+    }
+
+    public int height() {
+        return offset < 0 ? 0 : store.height(offset);
+    }
+
+    //Misses are answered from the key dictionary without walking the tree
+    public HashTree search(Object key) {
+        if (store.idOf(key) < 0) {
+            return null;
+        }
+        return super.search(key);
+    }
+
+    public Collection searchAll(Object key) {
+        if (store.idOf(key) < 0) {
+            return Collections.EMPTY_LIST;
+        }
+        return super.searchAll(key);
+    }
+
+    //Node views are created on every lookup, so there is nothing to cache a digest on
+    protected boolean cachesDigest() {
+        return false;
+    }
+
+    //Node counts are stored in the records and read by the overrides above
+    protected boolean tracksStats() {
+        return false;
+    }
+
+    protected HashTree createNewTree() {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    protected HashTree createNewTree(Object key) {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    protected HashTree createNewTree(Collection values) {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    protected void putNode(Object key, HashTree tree) {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    protected HashTree removeNode(Object key) {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    public void clear() {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    public void replaceKey(Object currentKey, Object newKey) {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+    public void buildIndex() {
+        throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+    }
+
+    //Serialized as a plain HashTree, since the direct buffers are not
+    private Object writeReplace() {
+        HashTree copy = new HashTree();
+        copy.add(this);
+        return copy;
+    }
+
+    //Read-only Map view of one record's children
+    private static class NodeMap extends AbstractMap {
+        final OffHeapStore store;
+        final long offset;
+
+        NodeMap(OffHeapStore store, long offset) {
+            this.store = store;
+            this.offset = offset;
+        }
+
+        public int size() {
+            return store.childCount(offset);
+        }
+
+        public boolean isEmpty() {
+            return store.childCount(offset) == 0;
+        }
+
+        public boolean containsKey(Object key) {
+            return find(key) >= 0;
+        }
+
+        public Object get(Object key) {
+            int index = find(key);
+            return index < 0 ? null : new OffHeapHashTree(store, store.child(offset, index));
+        }
+
+        //Returns the index of key among this record's children, -1 if absent
+        private int find(Object key) {
+            int id = store.idOf(key);
+            return id < 0 ? -1 : store.find(offset, id);
+        }
+
+        public Set entrySet() {
+            return new AbstractSet() {
+                public int size() {
+                    return NodeMap.this.size();
+                }
+                public Iterator iterator() {
+                    return new Iterator() {
+                        final int count = store.childCount(offset);
+                        int index;
+
+                        public boolean hasNext() {
+                            return index < count;
+                        }
+                        public Object next() {
+                            if (index >= count) {
+                                throw new NoSuchElementException();
+                            }
+                            Object key = store.key(store.childKey(offset, index));
+                            HashTree child = new OffHeapHashTree(store, store.child(offset, index));
+                            index++;
+                            return new SimpleImmutableEntry(key, child);
+                        }
+                        public void remove() {
+                            throw new UnsupportedOperationException("OffHeapHashTree is read-only.");
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Storage behind OffHeapHashTree: one block of direct ByteBuffers holding a whole tree, laid
+ * out as
+ *
+ *   key offsets  one long per distinct key, the offset of its key record; the index is its id
+ *   key table    open-addressing hash table of ints, key id + 1 (0 for an empty slot)
+ *   key records  int hash, byte tag, int length, payload: a String's chars, an Integer's int,
+ *                a Long's long, or any other key in HashTreeCodec's key encoding
+ *   node records int child count, long nodes below, long leaves below, int height, then per
+ *                child, sorted by key id: int key id, long offset of the child's record
+ *                (-1 for a leaf, which has no record of its own)
+ *
+ * Every size is known before anything is written, so the buffers are allocated exactly once.
+ * Each buffer holds 2^SEGMENT_BITS bytes (the last one less); a value that straddles two of
+ * them is read a byte at a time. Looking a key up costs one probe of the key table and,
+ * for String, Integer and Long keys, a comparison made in place without decoding anything.
+ * Nothing here is on the Java heap except the ByteBuffer objects themselves, and the memory
+ * is released when they are collected.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+class OffHeapStore {
+    static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    static final int TAG_NULL = 0;
+    static final int TAG_STRING = 1;
+    static final int TAG_INTEGER = 2;
+    static final int TAG_LONG = 3;
+    static final int TAG_OTHER = 4;
+
+    //int hash, byte tag, int length
+    static final int KEY_HEADER = 9;
+    //int count, long nodes below, long leaves below, int height
+    static final int NODE_HEADER = 24;
+    //int key id, long child offset
+    static final int ENTRY = 12;
+
+    private final ByteBuffer[] segments;
+    final long size;
+    final int keyCount;
+    private final long tableStart;
+    private final int tableMask;
+    final long root;
+
+    private OffHeapStore(ByteBuffer[] segments, long size, int keyCount, long tableStart, int tableMask, long root) {
+        this.segments = segments;
+        this.size = size;
+        this.keyCount = keyCount;
+        this.tableStart = tableStart;
+        this.tableMask = tableMask;
+        this.root = root;
+    }
+
+    //Copies tree into a new store; throws IllegalArgumentException for a key that can't be encoded
+    static OffHeapStore build(HashTree tree) {
+        //first pass: number the distinct keys and measure everything
+        HashMap ids = new HashMap();
+        ArrayList keys = new ArrayList();
+        long keyBytes = 0;
+        long recordBytes = NODE_HEADER;
+        ArrayDeque pending = new ArrayDeque();
+        pending.push(tree);
+        while (!pending.isEmpty()) {
+            HashTree node = (HashTree) pending.pop();
+            Iterator iter = node.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                Object key = entry.getKey();
+                if (!ids.containsKey(key)) {
+                    ids.put(key, Integer.valueOf(keys.size()));
+                    keys.add(key);
+                    keyBytes += KEY_HEADER + payloadLength(key);
+                }
+                recordBytes += ENTRY;
+                HashTree child = (HashTree) entry.getValue();
+                if (!child.data.isEmpty()) {
+                    recordBytes += NODE_HEADER;
+                    pending.push(child);
+                }
+            }
+        }
+        int capacity = 2;
+        while (capacity < keys.size() * 2) {
+            capacity <<= 1;
+        }
+        long tableStart = 8L * keys.size();
+        long keysStart = tableStart + 4L * capacity;
+        long recordsStart = keysStart + keyBytes;
+        long size = recordsStart + recordBytes;
+
+        ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect((int) Math.min(SEGMENT_SIZE, size - ((long) i << SEGMENT_BITS)));
+        }
+        OffHeapStore store = new OffHeapStore(segments, size, keys.size(), tableStart, capacity - 1, 0);
+        long position = keysStart;
+        for (int id = 0; id < keys.size(); id++) {
+            store.putLong(8L * id, position);
+            position = store.writeKey(position, keys.get(id));
+            store.insert(id, hash(keys.get(id)));
+        }
+        long root = store.writeNodes(tree, ids, position);
+        return new OffHeapStore(segments, size, keys.size(), tableStart, capacity - 1, root);
+    }
+
+    /* Second pass: node records in post-order from position, so each child's offset is known
+     * before its parent's record is written. Returns the root's offset.
+     */
+    private long writeNodes(HashTree tree, Map ids, long position) {
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(new Frame(-1, tree));
+        while (true) {
+            Frame frame = (Frame) stack.peek();
+            if (frame.entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) frame.entries.next();
+                int id = ((Integer) ids.get(entry.getKey())).intValue();
+                HashTree child = (HashTree) entry.getValue();
+                if (child.data.isEmpty()) {
+                    frame.add(id, -1, 0, 1, 0);
+                }
+                else {
+                    stack.push(new Frame(id, child));
+                }
+                continue;
+            }
+            stack.pop();
+            long offset = position;
+            position = frame.write(this, position);
+            if (stack.isEmpty()) {
+                return offset;
+            }
+            ((Frame) stack.peek()).add(frame.key, offset, frame.below, frame.leaves, frame.height);
+        }
+    }
+
+    //Returns the id of key, or -1 if it is nowhere in the tree
+    int idOf(Object key) {
+        int h = hash(key);
+        for (int slot = h & tableMask; ; slot = (slot + 1) & tableMask) {
+            int entry = getInt(tableStart + 4L * slot);
+            if (entry == 0) {
+                return -1;
+            }
+            long record = getLong(8L * (entry - 1));
+            if (getInt(record) == h && keyEquals(record, entry - 1, key)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    //Decodes the key with the given id
+    Object key(int id) {
+        long record = getLong(8L * id);
+        int length = getInt(record + 5);
+        long payload = record + KEY_HEADER;
+        switch (getByte(record + 4)) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = getChar(payload + 2L * i);
+                }
+                return new String(chars);
+            case TAG_INTEGER:
+                return Integer.valueOf(getInt(payload));
+            case TAG_LONG:
+                return Long.valueOf(getLong(payload));
+            default:
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = (byte) getByte(payload + i);
+                }
+                try {
+                    return HashTreeCodec.readKey(new HashTreeCodec.In(new ByteArrayInputStream(bytes), 64), true);
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException("Cannot decode off-heap key", e);
+                }
+        }
+    }
+
+    int childCount(long node) {
+        return getInt(node);
+    }
+
+    long below(long node) {
+        return getLong(node + 4);
+    }
+
+    long leaves(long node) {
+        return getLong(node + 12);
+    }
+
+    int height(long node) {
+        return getInt(node + 20);
+    }
+
+    int childKey(long node, int index) {
+        return getInt(node + NODE_HEADER + (long) ENTRY * index);
+    }
+
+    long child(long node, int index) {
+        return getLong(node + NODE_HEADER + (long) ENTRY * index + 4);
+    }
+
+    //Returns the index of the child of node with key id, or -1; children are sorted by id
+    int find(long node, int id) {
+        int lo = 0;
+        int hi = getInt(node) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = childKey(node, mid);
+            if (midId < id) {
+                lo = mid + 1;
+            }
+            else if (midId > id) {
+                hi = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    //Compares key with the key with the given id, whose record starts at record
+    private boolean keyEquals(long record, int id, Object key) {
+        int tag = getByte(record + 4);
+        int length = getInt(record + 5);
+        long payload = record + KEY_HEADER;
+        if (key == null) {
+            return tag == TAG_NULL;
+        }
+        if (key instanceof String) {
+            String s = (String) key;
+            if (tag != TAG_STRING || length != s.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (getChar(payload + 2L * i) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (key instanceof Integer) {
+            return tag == TAG_INTEGER && getInt(payload) == ((Integer) key).intValue();
+        }
+        if (key instanceof Long) {
+            return tag == TAG_LONG && getLong(payload) == ((Long) key).longValue();
+        }
+        return tag == TAG_OTHER && key.equals(key(id));
+    }
+
+    //Writes key's record at position and returns the position after it
+    private long writeKey(long position, Object key) {
+        putInt(position, hash(key));
+        long payload = position + KEY_HEADER;
+        if (key == null) {
+            putByte(position + 4, TAG_NULL);
+            putInt(position + 5, 0);
+            return payload;
+        }
+        if (key instanceof String) {
+            String s = (String) key;
+            putByte(position + 4, TAG_STRING);
+            putInt(position + 5, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                putChar(payload + 2L * i, s.charAt(i));
+            }
+            return payload + 2L * s.length();
+        }
+        if (key instanceof Integer) {
+            putByte(position + 4, TAG_INTEGER);
+            putInt(position + 5, 4);
+            putInt(payload, ((Integer) key).intValue());
+            return payload + 4;
+        }
+        if (key instanceof Long) {
+            putByte(position + 4, TAG_LONG);
+            putInt(position + 5, 8);
+            putLong(payload, ((Long) key).longValue());
+            return payload + 8;
+        }
+        byte[] bytes = encode(key);
+        putByte(position + 4, TAG_OTHER);
+        putInt(position + 5, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            putByte(payload + i, bytes[i]);
+        }
+        return payload + bytes.length;
+    }
+
+    private void insert(int id, int h) {
+        int slot = h & tableMask;
+        while (getInt(tableStart + 4L * slot) != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        putInt(tableStart + 4L * slot, id + 1);
+    }
+
+    private static long payloadLength(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        if (key instanceof String) {
+            return 2L * ((String) key).length();
+        }
+        if (key instanceof Integer) {
+            return 4;
+        }
+        if (key instanceof Long) {
+            return 8;
+        }
+        return encode(key).length;
+    }
+
+    //Any other key in HashTreeCodec's encoding, tag byte included
+    private static byte[] encode(Object key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            HashTreeCodec.Out out = new HashTreeCodec.Out(bytes, false, 64);
+            HashTreeCodec.writeKey(out, key);
+            out.finish();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Cannot store key off-heap: " + key, e);
+        }
+    }
+
+    static int hash(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int getByte(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK)) & 0xff;
+    }
+
+    private char getChar(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - 2) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getChar(offset);
+        }
+        return (char) ((getByte(position) << 8) | getByte(position + 1));
+    }
+
+    private int getInt(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - 4) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getInt(offset);
+        }
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | getByte(position + i);
+        }
+        return v;
+    }
+
+    private long getLong(long position) {
+        int offset = (int) (position & SEGMENT_MASK);
+        if (offset <= SEGMENT_SIZE - 8) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getLong(offset);
+        }
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xffffffffL);
+    }
+
+    private void putByte(long position, int b) {
+        segments[(int) (position >>> SEGMENT_BITS)].put((int) (position & SEGMENT_MASK), (byte) b);
+    }
+
+    private void putChar(long position, char c) {
+        putByte(position, c >>> 8);
+        putByte(position + 1, c);
+    }
+
+    private void putInt(long position, int v) {
+        for (int i = 0; i < 4; i++) {
+            putByte(position + i, v >>> (24 - 8 * i));
+        }
+    }
+
+    private void putLong(long position, long v) {
+        putInt(position, (int) (v >>> 32));
+        putInt(position + 4, (int) v);
+    }
+
+    //A node whose record is being put together while its subtree is written
+    private static class Frame {
+        final int key;
+        final Iterator entries;
+        int[] ids;
+        long[] offsets;
+        int count;
+        long below;
+        long leaves;
+        int height;
+
+        Frame(int key, HashTree tree) {
+            this.key = key;
+            this.entries = tree.data.entrySet().iterator();
+            int size = Math.max(1, tree.data.size());
+            ids = new int[size];
+            offsets = new long[size];
+        }
+
+        //Adds a child with the counts of the subtree below it
+        void add(int id, long offset, long childBelow, long childLeaves, int childHeight) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            ids[count] = id;
+            offsets[count] = offset;
+            count++;
+            below += childBelow + 1;
+            leaves += offset < 0 ? 1 : childLeaves;
+            height = Math.max(height, childHeight + 1);
+        }
+
+        //Writes the record at position, children sorted by key id, and returns the position after it
+        long write(OffHeapStore store, long position) {
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) ids[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            store.putInt(position, count);
+            store.putLong(position + 4, below);
+            store.putLong(position + 12, leaves);
+            store.putInt(position + 20, height);
+            long entry = position + NODE_HEADER;
+            for (int i = 0; i < count; i++) {
+                int index = (int) order[i];
+                store.putInt(entry, ids[index]);
+                store.putLong(entry + 4, offsets[index]);
+                entry += ENTRY;
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Base of the key-specialized hash tables that LongNodeMap and StringNodeMap switch to once a
+ * node outgrows its inline entries (LongKeyTable, StringKeyTable). Entries live in plain
+ * parallel arrays probed linearly, so there is no Entry object per child and a lookup reads
+ * the key arrays and one value slot instead of chasing a bucket chain. A subclass keeps the
+ * keys in whatever array suits their type and takes only the keys it owns(); any other key
+ * goes into a CompactNodeMap on the side, so the map still accepts every key a HashTree can.
+ *
+ *   values[i] == null      free slot; a probe stops here
+ *   values[i] == DELETED   removed entry; probes continue past it, inserts may reuse it
+ *   otherwise              live entry, with NULL standing in for a null value
+ */
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+abstract class OpenKeyTable extends AbstractMap implements Serializable {
+    static final Object DELETED = new Object();
+    static final Object NULL = new Object();
+    static final int MIN_CAPACITY = 2;
+
+    //slot values; null until the first owned key is added
+    transient Object[] values;
+    //live entries in the slots
+    transient int size;
+    //live plus deleted slots
+    transient int used;
+    //keys the slots don't take
+    transient CompactNodeMap others;
+
+    //True if key is kept in the slots
+    abstract boolean owns(Object key);
+    //Slot of an owned key, or -1
+    abstract int find(Object key);
+    //Maps an owned key to value, returning the previous value
+    abstract Object putOwned(Object key, Object value);
+    //Key in a live slot
+    abstract Object keyAt(int slot);
+    //Drops any reference the key arrays hold for slot
+    abstract void forgetKey(int slot);
+    //Moves the live entries into fresh arrays of the given capacity, discarding deleted slots
+    abstract void rehash(int capacity);
+    //Releases the key arrays
+    abstract void releaseKeys();
+
+    public int size() {
+        return size + (others == null ? 0 : others.size());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        if (owns(key)) {
+            return find(key) >= 0;
+        }
+        return others != null && others.containsKey(key);
+    }
+
+    public Object get(Object key) {
+        if (owns(key)) {
+            int i = find(key);
+            return i < 0 ? null : unmask(values[i]);
+        }
+        return others == null ? null : others.get(key);
+    }
+
+    public Object put(Object key, Object value) {
+        if (owns(key)) {
+            return putOwned(key, value);
+        }
+        if (others == null) {
+            others = new CompactNodeMap();
+        }
+        return others.put(key, value);
+    }
+
+    public Object remove(Object key) {
+        if (owns(key)) {
+            int i = find(key);
+            if (i < 0) {
+                return null;
+            }
+            Object previous = unmask(values[i]);
+            removeAt(i);
+            return previous;
+        }
+        return others == null ? null : others.remove(key);
+    }
+
+    public void clear() {
+        values = null;
+        size = 0;
+        used = 0;
+        others = null;
+        releaseKeys();
+    }
+
+    public void forEach(BiConsumer action) {
+        Object[] v = values;
+        if (v != null) {
+            for (int i = 0; i < v.length; i++) {
+                if (v[i] != null && v[i] != DELETED) {
+                    action.accept(keyAt(i), unmask(v[i]));
+                }
+            }
+        }
+        if (others != null) {
+            others.forEach(action);
+        }
+    }
+
+    public Set entrySet() {
+        return new AbstractSet() {
+            public int size() {
+                return OpenKeyTable.this.size();
+            }
+            public Iterator iterator() {
+                return new EntryIterator();
+            }
+            public void clear() {
+                OpenKeyTable.this.clear();
+            }
+        };
+    }
+
+    //Makes room for one more entry, growing or just sweeping out deleted slots
+    final void ensureRoom() {
+        int capacity = values == null ? 0 : values.length;
+        if ((used + 1) * 4 <= capacity * 3) {
+            return;
+        }
+        int target = Math.max(capacity, MIN_CAPACITY);
+        while ((size + 1) * 4 > target * 3) {
+            target *= 2;
+        }
+        rehash(target);
+    }
+
+    //Stores value in slot i for a key just written there
+    final void occupy(int i, Object value) {
+        if (values[i] == null) {
+            used++;
+        }
+        values[i] = mask(value);
+        size++;
+    }
+
+    final void removeAt(int i) {
+        values[i] = DELETED;
+        forgetKey(i);
+        size--;
+    }
+
+    static Object mask(Object value) {
+        return value == null ? NULL : value;
+    }
+
+    static Object unmask(Object value) {
+        return value == NULL ? null : value;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size());
+        Iterator iter = entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            out.writeObject(entry.getKey());
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (int n = in.readInt(); n > 0; n--) {
+            Object key = in.readObject();
+            put(key, in.readObject());
+        }
+    }
+
+    //Slots first, then the side map; remove() marks the slot deleted, so nothing moves
+    private class EntryIterator implements Iterator {
+        private int next = -1;
+        private int last = -1;
+        private Iterator rest;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            Object[] v = values;
+            for (next++; v != null && next < v.length; next++) {
+                if (v[next] != null && v[next] != DELETED) {
+                    return;
+                }
+            }
+            next = -1;
+            if (rest == null && others != null) {
+                rest = others.entrySet().iterator();
+            }
+        }
+
+        public boolean hasNext() {
+            return next >= 0 || (rest != null && rest.hasNext());
+        }
+
+        public Object next() {
+            if (next >= 0) {
+                last = next;
+                advance();
+                return new Slot(last);
+            }
+            if (rest == null) {
+                throw new NoSuchElementException();
+            }
+            last = -1;
+            return rest.next();
+        }
+
+        public void remove() {
+            if (last >= 0) {
+                removeAt(last);
+                last = -1;
+            }
+            else if (rest != null) {
+                rest.remove();
+            }
+            else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    //Entry handed out while iterating; writes through to the slot
+    private class Slot implements Map.Entry {
+        final int i;
+        final Object key;
+
+        Slot(int i) {
+            this.i = i;
+            this.key = keyAt(i);
+        }
+        public Object getKey() {
+            return key;
+        }
+        public Object getValue() {
+            return unmask(values[i]);
+        }
+        public Object setValue(Object value) {
+            Object previous = unmask(values[i]);
+            values[i] = mask(value);
+            return previous;
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry e = (Map.Entry) o;
+            Object value = getValue();
+            return key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+        public int hashCode() {
+            Object value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Fork-join engine behind HashTree.parallelTraverse. The tree is split on subtree
+ * boundaries: each level hands its children to separate tasks until there are about
+ * TASKS_PER_THREAD tasks per pool thread, so a narrow top level (one "Teams" node, say)
+ * is split further down instead of running on a single thread. A level with more children
+ * than that is cut into runs of adjacent children, one task each, rather than a task per
+ * child. When the tree keeps its node counts, children are weighed by size, so one huge
+ * subtree is split further than its small siblings. Every node is visited exactly once; a
+ * task's visitor is forked from its parent's after the parent has visited the node above,
+ * so path state carries over. Once any visitor returns STOP, every task stops making
+ * callbacks.
+ */
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class ParallelTraversal {
+    //tasks to aim for per pool thread, so uneven subtrees still balance out
+    static final int TASKS_PER_THREAD = 4;
+
+    private volatile boolean stopped;
+
+    //Traverses tree with visitor on pool; results end up merged into visitor
+    void run(final HashTree tree, final MergeableHashTreeTraverser visitor, ForkJoinPool pool) {
+        final int budget = pool.getParallelism() * TASKS_PER_THREAD;
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                traverseChildren(tree, visitor, budget);
+            }
+        });
+    }
+
+    //Visits the children of tree, in parallel while there is budget left to split
+    private void traverseChildren(HashTree tree, MergeableHashTreeTraverser visitor, int budget) {
+        int count = tree.data.size();
+        if (budget <= 1 || count == 0) {
+            walk(tree, visitor);
+            return;
+        }
+        Object[] keys = new Object[count];
+        HashTree[] children = new HashTree[count];
+        //trees that keep their node counts weigh each child by its size instead of evenly
+        long[] weights = new long[count];
+        long total = 0;
+        boolean sized = tree.tracksStats();
+        Iterator iter = tree.data.entrySet().iterator();
+        for (int i = 0; i < count && iter.hasNext(); i++) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            keys[i] = entry.getKey();
+            children[i] = (HashTree) entry.getValue();
+            weights[i] = sized && children[i].tracksStats() ? children[i].totalSize() + 1 : 1;
+            total += weights[i];
+        }
+        List tasks = new ArrayList(Math.min(count, budget));
+        if (count <= budget) {
+            for (int i = 0; i < count; i++) {
+                int share = (int) Math.max(1, (budget * weights[i] + total - 1) / total);
+                tasks.add(new NodeTask(visitor.fork(), keys, children, i, i + 1, share));
+            }
+        }
+        else {
+            //more children than budget: at most budget runs of adjacent children, each of
+            //about total / budget weight, walked one after another by a single task
+            int from = 0;
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += weights[i];
+                if (i == count - 1 || sum * budget >= (tasks.size() + 1) * total) {
+                    tasks.add(new NodeTask(visitor.fork(), keys, children, from, i + 1, 1));
+                    from = i + 1;
+                }
+            }
+        }
+        RecursiveAction.invokeAll(tasks);
+        for (int i = 0; i < tasks.size(); i++) {
+            visitor.merge(((NodeTask) tasks.get(i)).visitor);
+        }
+    }
+
+    //Walks tree on this thread, stopping when this visitor returns STOP or another task already has
+    private void walk(HashTree tree, final HashTreeTraverser visitor) {
+        tree.traverse(new HashTreeTraverser() {
+            public void addNode(Object node, HashTree subtree) {
+                visitor.addNode(node, subtree);
+            }
+            public void subtractNode() {
+                visitor.subtractNode();
+            }
+            public void processPath() {
+                visitor.processPath();
+            }
+            public TraversalControl visitNode(Object node, HashTree subtree) {
+                if (stopped) {
+                    return TraversalControl.STOP;
+                }
+                TraversalControl control = visitor.visitNode(node, subtree);
+                if (control == TraversalControl.STOP) {
+                    stopped = true;
+                }
+                return control;
+            }
+        });
+    }
+
+    //Visits a run of sibling nodes, and their subtrees, with its own forked visitor
+    private class NodeTask extends RecursiveAction {
+        final MergeableHashTreeTraverser visitor;
+        final Object[] keys;
+        final HashTree[] trees;
+        final int from;
+        final int to;
+        //budget for each node's children
+        final int budget;
+
+        NodeTask(MergeableHashTreeTraverser visitor, Object[] keys, HashTree[] trees, int from, int to, int budget) {
+            this.visitor = visitor;
+            this.keys = keys;
+            this.trees = trees;
+            this.from = from;
+            this.to = to;
+            this.budget = budget;
+        }
+
+        protected void compute() {
+            for (int i = from; i < to; i++) {
+                if (stopped) {
+                    return;
+                }
+                HashTreeTraverser.TraversalControl control = visitor.visitNode(keys[i], trees[i]);
+                if (control == HashTreeTraverser.TraversalControl.STOP) {
+                    stopped = true;
+                    return;
+                }
+                if (control == HashTreeTraverser.TraversalControl.CONTINUE) {
+                    if (trees[i].data.isEmpty()) {
+                        visitor.processPath();
+                    }
+                    else {
+                        traverseChildren(trees[i], visitor, budget);
+                    }
+                }
+                //no callbacks after a STOP, including the subtractNode for this node
+                if (stopped) {
+                    return;
+                }
+                visitor.subtractNode();
+            }
+        }
+    }
+}
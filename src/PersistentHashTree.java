@@ -0,0 +1,187 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Immutable HashTree with structural sharing. Nothing in a PersistentHashTree ever changes:
+ * with, withTree and without return a new root that copies only the nodes on the changed
+ * path and shares every other subtree with the version it came from, so old versions stay
+ * valid and can be read by any number of threads without locks. Each node keeps its
+ * children in a PersistentNodeMap, so even a very wide node is not copied whole.
+ * HashTree.snapshot() turns a mutable tree into one of these; toHashTree() goes back.
+ * Any attempt to change the tree in place throws UnsupportedOperationException.
+ */
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+
+public final class PersistentHashTree extends HashTree {
+    private static final PersistentHashTree EMPTY = new PersistentHashTree(PersistentNodeMap.EMPTY);
+
+    //see stats(); null until first asked for
+    private transient volatile long[] stats;
+
+    PersistentHashTree(PersistentNodeMap children) {
+        super(children);
+    }
+
+    //Returns the empty tree
+    public static PersistentHashTree empty() {
+        return EMPTY;
+    }
+
+    //Returns an immutable copy of tree; same as tree.snapshot()
+    public static PersistentHashTree copyOf(HashTree tree) {
+        return tree.snapshot();
+    }
+
+    //Already immutable, so a snapshot is the tree itself
+    public PersistentHashTree snapshot() {
+        return this;
+    }
+
+    //Returns a version with the path of keys added, one level per key
+    public PersistentHashTree with(Object... treePath) {
+        HashTree existing = getTreePath(treePath);
+        return update(treePath, existing != null ? (PersistentHashTree) existing : EMPTY);
+    }
+
+    //Returns a version where the last key of treePath maps to a snapshot of subtree
+    public PersistentHashTree withTree(Object[] treePath, HashTree subtree) {
+        return update(treePath, subtree.snapshot());
+    }
+
+    //Returns a version without the branch under the last key of treePath
+    public PersistentHashTree without(Object... treePath) {
+        return update(treePath, null);
+    }
+
+    //Returns a mutable deep copy of this tree
+    public HashTree toHashTree() {
+        HashTree copy = new HashTree();
+        copy.add(this);
+        return copy;
+    }
+
+    /* Copies the nodes along treePath bottom-up so its last key maps to subtree (or is removed
+     * when subtree is null). Stops as soon as a level comes out unchanged and returns this.
+     */
+    private PersistentHashTree update(Object[] treePath, PersistentHashTree subtree) {
+        if (treePath.length == 0) {
+            return subtree != null ? subtree : EMPTY;
+        }
+        PersistentHashTree[] path = new PersistentHashTree[treePath.length];
+        PersistentHashTree node = this;
+        for (int i = 0; i < treePath.length; i++) {
+            path[i] = node != null ? node : EMPTY;
+            node = node != null ? (PersistentHashTree) node.data.get(treePath[i]) : null;
+        }
+        PersistentHashTree result = subtree;
+        for (int i = treePath.length - 1; i >= 0; i--) {
+            PersistentNodeMap children = (PersistentNodeMap) path[i].data;
+            PersistentNodeMap updated = result != null
+                ? children.plus(treePath[i], result)
+                : children.minus(treePath[i]);
+            if (updated == children) {
+                return this;
+            }
+            result = updated.isEmpty() ? EMPTY : new PersistentHashTree(updated);
+        }
+        return result;
+    }
+
+    protected HashTree createNewTree() {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    protected HashTree createNewTree(Object key) {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    protected HashTree createNewTree(Collection values) {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    protected void putNode(Object key, HashTree tree) {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    protected HashTree removeNode(Object key) {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    public void clear() {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    public void replaceKey(Object currentKey, Object newKey) {
+        throw new UnsupportedOperationException("PersistentHashTree is immutable.");
+    }
+    //Nodes are built without going through putNode, so counts are worked out on demand below
+    protected boolean tracksStats() {
+        return false;
+    }
+
+    public long totalSize() {
+        return stats()[0];
+    }
+
+    public long leafCount() {
+        return stats()[1];
+    }
+
+    public int height() {
+        return (int) stats()[2];
+    }
+
+    /* Nodes below, leaves and levels of this node. Nothing below a node ever changes, so they
+     * are counted once per node, bottom-up from the children's counts, and then shared by
+     * every version and every mutable tree the node is grafted into.
+     */
+    private long[] stats() {
+        if (stats != null) {
+            return stats;
+        }
+        ArrayDeque stack = new ArrayDeque();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            PersistentHashTree node = (PersistentHashTree) stack.peek();
+            boolean ready = true;
+            Iterator iter = node.data.values().iterator();
+            while (iter.hasNext()) {
+                PersistentHashTree child = (PersistentHashTree) iter.next();
+                if (child.stats == null) {
+                    stack.push(child);
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            long[] counts = new long[3];
+            iter = node.data.values().iterator();
+            while (iter.hasNext()) {
+                long[] child = ((PersistentHashTree) iter.next()).stats;
+                counts[0] += child[0] + 1;
+                counts[1] += child[0] == 0 ? 1 : child[1];
+                counts[2] = Math.max(counts[2], child[2] + 1);
+            }
+            node.stats = counts;
+        }
+        return stats;
+    }
+    //Nodes are shared between versions, so they cannot point at one version's index
+    public void buildIndex() {
+        throw new UnsupportedOperationException("PersistentHashTree does not support a key index.");
+    }
+
+    //Serialized as a plain HashTree and frozen again on the way back in
+    private Object writeReplace() {
+        return new Serialized(toHashTree());
+    }
+
+    private static class Serialized implements Serializable {
+        private final HashTree tree;
+
+        Serialized(HashTree tree) {
+            this.tree = tree;
+        }
+
+        private Object readResolve() {
+            return tree.snapshot();
+        }
+    }
+}
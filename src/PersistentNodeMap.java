@@ -0,0 +1,337 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Immutable node map used for the data of every PersistentHashTree node: a hash array mapped
+ * trie. plus and minus return a new map that shares everything but the few trie nodes on the
+ * changed key's path (one per 5 bits of its hash), so changing one child of a node with
+ * thousands of children copies a handful of small arrays instead of the whole node.
+ *   - a trie node keeps a 32-bit bitmap of the hash slices it holds and an array of
+ *     alternating keys and values; a slot whose key is SUBNODE holds a deeper trie node
+ *   - keys whose full hashes are equal share a collision node, scanned linearly
+ * Null keys are allowed. Entries iterate in hash order.
+ */
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+final class PersistentNodeMap extends AbstractMap {
+    static final PersistentNodeMap EMPTY = new PersistentNodeMap(new BitmapNode(0, new Object[0]), 0);
+
+    //marks a slot holding a deeper trie node instead of a key
+    private static final Object SUBNODE = new Object();
+    //returned by find when the key is absent, since null is a valid value
+    private static final Object NOT_FOUND = new Object();
+    //bits of the hash consumed per trie level
+    private static final int BITS = 5;
+    //most trie nodes on any path: seven bitmap levels cover 32 bits, plus a collision node
+    private static final int MAX_DEPTH = 8;
+
+    private final Node root;
+    private final int size;
+
+    private PersistentNodeMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    public Object get(Object key) {
+        Object value = root.find(0, hash(key), key);
+        return value == NOT_FOUND ? null : value;
+    }
+
+    //Returns a map with key mapped to value; returns this map if it already was
+    PersistentNodeMap plus(Object key, Object value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.plus(0, hash(key), key, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentNodeMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    //Returns a map without key; returns this map if key is absent
+    PersistentNodeMap minus(Object key) {
+        Node newRoot = root.minus(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new PersistentNodeMap(newRoot, size - 1);
+    }
+
+    //Visits every entry straight from the trie, with no iterator or entry objects
+    public void forEach(BiConsumer action) {
+        root.forEach(action);
+    }
+
+    public Set entrySet() {
+        return new AbstractSet() {
+            public int size() {
+                return size;
+            }
+            public Iterator iterator() {
+                return new EntryIterator(root);
+            }
+        };
+    }
+
+    //Spreads the high bits down, since most levels only ever look at the low ones
+    private static int hash(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    //Copy of array with length changed by delta at index: pairs are inserted or dropped there
+    private static Object[] resize(Object[] array, int index, int delta) {
+        Object[] copy = new Object[array.length + delta];
+        System.arraycopy(array, 0, copy, 0, index);
+        if (delta > 0) {
+            System.arraycopy(array, index, copy, index + delta, array.length - index);
+        }
+        else {
+            System.arraycopy(array, index - delta, copy, index, array.length - index + delta);
+        }
+        return copy;
+    }
+
+    //Copy of array with the value at index replaced
+    private static Object[] with(Object[] array, int index, Object value) {
+        Object[] copy = array.clone();
+        copy[index] = value;
+        return copy;
+    }
+
+    //Smallest trie holding two entries whose keys differ, starting at the given level
+    private static Node pair(int shift, int hash1, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+        }
+        int slice1 = (hash1 >>> shift) & 31;
+        int slice2 = (hash2 >>> shift) & 31;
+        if (slice1 == slice2) {
+            return new BitmapNode(1 << slice1, new Object[] { SUBNODE, pair(shift + BITS, hash1, key1, value1, hash2, key2, value2) });
+        }
+        Object[] array = slice1 < slice2
+            ? new Object[] { key1, value1, key2, value2 }
+            : new Object[] { key2, value2, key1, value1 };
+        return new BitmapNode((1 << slice1) | (1 << slice2), array);
+    }
+
+    //A trie node; array holds alternating keys and values
+    private abstract static class Node {
+        final Object[] array;
+
+        Node(Object[] array) {
+            this.array = array;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+        //Returns this node if nothing changed; sets added[0] when key was not there before
+        abstract Node plus(int shift, int hash, Object key, Object value, boolean[] added);
+        //Returns this node if key is absent, null if the node is left empty
+        abstract Node minus(int shift, int hash, Object key);
+
+        void forEach(BiConsumer action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == SUBNODE) {
+                    ((Node) array[i + 1]).forEach(action);
+                }
+                else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+        final int bitmap;
+
+        BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        //Position in array of the pair for bit
+        private int indexOf(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int i = indexOf(bit);
+            if (array[i] == SUBNODE) {
+                return ((Node) array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return eq(array[i], key) ? array[i + 1] : NOT_FOUND;
+        }
+
+        Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = indexOf(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] copy = resize(array, i, 2);
+                copy[i] = key;
+                copy[i + 1] = value;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[i];
+            Object v = array[i + 1];
+            if (k == SUBNODE) {
+                Node sub = ((Node) v).plus(shift + BITS, hash, key, value, added);
+                return sub == v ? this : new BitmapNode(bitmap, with(array, i + 1, sub));
+            }
+            if (eq(k, key)) {
+                return v == value ? this : new BitmapNode(bitmap, with(array, i + 1, value));
+            }
+            added[0] = true;
+            Object[] copy = array.clone();
+            copy[i] = SUBNODE;
+            copy[i + 1] = pair(shift + BITS, hash(k), k, v, hash, key, value);
+            return new BitmapNode(bitmap, copy);
+        }
+
+        Node minus(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = indexOf(bit);
+            if (array[i] == SUBNODE) {
+                Node sub = (Node) array[i + 1];
+                Node newSub = sub.minus(shift + BITS, hash, key);
+                if (newSub == sub) {
+                    return this;
+                }
+                if (newSub != null) {
+                    return new BitmapNode(bitmap, with(array, i + 1, newSub));
+                }
+            }
+            else if (!eq(array[i], key)) {
+                return this;
+            }
+            return bitmap == bit ? null : new BitmapNode(bitmap ^ bit, resize(array, i, -2));
+        }
+    }
+
+    //Entries whose keys have the same full hash
+    private static final class CollisionNode extends Node {
+        final int hash;
+
+        CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (eq(array[i], key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Object find(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            return i >= 0 ? array[i + 1] : NOT_FOUND;
+        }
+
+        Node plus(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                //push this node one level down and branch off beside it
+                BitmapNode parent = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[] { SUBNODE, this });
+                return parent.plus(shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                return array[i + 1] == value ? this : new CollisionNode(hash, with(array, i + 1, value));
+            }
+            added[0] = true;
+            Object[] copy = resize(array, array.length, 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        Node minus(int shift, int hash, Object key) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            return array.length == 2 ? null : new CollisionNode(hash, resize(array, i, -2));
+        }
+    }
+
+    //Depth-first walk over the trie with a fixed stack of arrays and positions
+    private static final class EntryIterator implements Iterator {
+        private final Object[][] arrays = new Object[MAX_DEPTH][];
+        private final int[] positions = new int[MAX_DEPTH];
+        private int depth;
+        private Object nextKey;
+        private Object nextValue;
+        private boolean ready;
+
+        EntryIterator(Node root) {
+            arrays[0] = root.array;
+            advance();
+        }
+
+        //Moves to the next key/value slot, descending into trie nodes on the way
+        private void advance() {
+            ready = false;
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int i = positions[depth];
+                if (i >= array.length) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = i + 2;
+                if (array[i] == SUBNODE) {
+                    depth++;
+                    arrays[depth] = ((Node) array[i + 1]).array;
+                    positions[depth] = 0;
+                    continue;
+                }
+                nextKey = array[i];
+                nextValue = array[i + 1];
+                ready = true;
+                return;
+            }
+        }
+
+        public boolean hasNext() {
+            return ready;
+        }
+
+        public Object next() {
+            if (!ready) {
+                throw new NoSuchElementException();
+            }
+            Object entry = new SimpleImmutableEntry(nextKey, nextValue);
+            advance();
+            return entry;
+        }
+    }
+}
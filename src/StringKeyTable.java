@@ -0,0 +1,92 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Hash table behind a StringNodeMap that has outgrown its inline entries. Each key's hash is
+ * cached in an int[] beside it, so a probe compares hashes in that array and only touches a
+ * String whose hash matches, where HashMap follows a pointer to every Entry along the way.
+ * Keys arrive already interned. Non-String keys go to the side map.
+ */
+class StringKeyTable extends OpenKeyTable {
+    private transient String[] keys;
+    private transient int[] hashes;
+
+    boolean owns(Object key) {
+        return key instanceof String;
+    }
+
+    int find(Object key) {
+        Object[] v = values;
+        if (v == null) {
+            return -1;
+        }
+        String s = (String) key;
+        int h = spread(s.hashCode());
+        int mask = v.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            Object value = v[i];
+            if (value == null) {
+                return -1;
+            }
+            if (hashes[i] == h && value != DELETED && (keys[i] == s || keys[i].equals(s))) {
+                return i;
+            }
+        }
+    }
+
+    Object putOwned(Object key, Object value) {
+        int i = find(key);
+        if (i >= 0) {
+            Object previous = unmask(values[i]);
+            values[i] = mask(value);
+            return previous;
+        }
+        ensureRoom();
+        String s = (String) key;
+        int h = spread(s.hashCode());
+        int mask = values.length - 1;
+        for (i = h & mask; values[i] != null && values[i] != DELETED; i = (i + 1) & mask) {
+        }
+        keys[i] = s;
+        hashes[i] = h;
+        occupy(i, value);
+        return null;
+    }
+
+    Object keyAt(int slot) {
+        return keys[slot];
+    }
+
+    void forgetKey(int slot) {
+        keys[slot] = null;
+    }
+
+    void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Object[] oldValues = values;
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        values = new Object[capacity];
+        used = size;
+        int mask = capacity - 1;
+        for (int j = 0; oldValues != null && j < oldValues.length; j++) {
+            if (oldValues[j] != null && oldValues[j] != DELETED) {
+                int i = oldHashes[j] & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    void releaseKeys() {
+        keys = null;
+        hashes = null;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
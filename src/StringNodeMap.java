@@ -0,0 +1,22 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Node map for levels keyed by names such as teams, players and stat names. String keys are
+ * interned when added, so the thousands of "PTS" and "REB" nodes of a season share one String
+ * each instead of keeping one per parsed occurrence, and a lookup with an interned key matches
+ * on reference. Small nodes keep their entries inline like any CompactNodeMap; a node that
+ * outgrows them moves into a StringKeyTable, which caches each key's hash beside it.
+ */
+import java.util.Map;
+
+public class StringNodeMap extends CompactNodeMap {
+    public StringNodeMap() {
+    }
+
+    protected Map createLargeMap() {
+        return new StringKeyTable();
+    }
+
+    public Object put(Object key, Object value) {
+        return super.put(key instanceof String ? ((String) key).intern() : key, value);
+    }
+}
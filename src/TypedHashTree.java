@@ -0,0 +1,78 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * HashTree that picks each level's node map by the type of key that level holds, e.g.
+ *   new TypedHashTree(KeyType.STRING, KeyType.STRING, KeyType.STRING, KeyType.STRING, KeyType.LONG)
+ * for Teams -> team -> player -> stat -> value. createNewTree hands every new node the map
+ * for its own depth, so the choice follows the tree down; levels past the end of the list use
+ * the generic CompactNodeMap. Any key can still go at any level, the specialized maps just
+ * keep keys of other types on the side.
+ */
+import java.util.Collection;
+import java.util.Map;
+
+public class TypedHashTree extends HashTree {
+    //Key type of one level; each picks the node map used for it
+    public enum KeyType {
+        OBJECT, STRING, LONG
+    }
+
+    private final KeyType[] levels;
+    private final int level;
+
+    //Creates an empty tree whose level i holds keys of levels[i]
+    public TypedHashTree(KeyType... levels) {
+        this(levels.clone(), 0);
+    }
+
+    private TypedHashTree(KeyType[] levels, int level) {
+        super(newMap(level < levels.length ? levels[level] : KeyType.OBJECT));
+        this.levels = levels;
+        this.level = level;
+    }
+
+    private static Map newMap(KeyType type) {
+        switch (type) {
+        case STRING:
+            return new StringNodeMap();
+        case LONG:
+            return new LongNodeMap();
+        default:
+            return new CompactNodeMap();
+        }
+    }
+
+    //Gets the subtree for a whole-number key without boxing it on a LONG level
+    public HashTree getTree(long key) {
+        if (data instanceof LongNodeMap) {
+            return (HashTree) ((LongNodeMap) data).get(key);
+        }
+        return getTree(Long.valueOf(key));
+    }
+
+    public boolean containsKey(long key) {
+        if (data instanceof LongNodeMap) {
+            return ((LongNodeMap) data).containsKey(key);
+        }
+        return containsKey(Long.valueOf(key));
+    }
+
+    //Adds a whole-number key (as a Long) at the current level and returns its subtree
+    public HashTree add(long key) {
+        HashTree tree = getTree(key);
+        return tree != null ? tree : add(Long.valueOf(key));
+    }
+
+    protected HashTree createNewTree() {
+        return new TypedHashTree(levels, level + 1);
+    }
+    protected HashTree createNewTree(Object key) {
+        HashTree tree = createNewTree();
+        tree.add(key);
+        return tree;
+    }
+    protected HashTree createNewTree(Collection values) {
+        HashTree tree = createNewTree();
+        tree.add(values);
+        return tree;
+    }
+}
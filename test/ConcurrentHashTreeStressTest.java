@@ -0,0 +1,140 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Stress test for ConcurrentHashTree, run with "ant test". Several threads released together
+ * call add(Collection treePath, Collection values) on overlapping paths of one tree, so most
+ * path segments are raced for. Afterwards the tree must hold exactly what the same calls made
+ * one at a time build in a plain HashTree, with no lost or duplicated nodes, every child's
+ * parent link pointing at the node that holds it and every node a ConcurrentHashTree.
+ * Exits with status 1 on the first broken invariant.
+ *
+ * Arguments: optional number of threads (default 8), adds per thread (default 20000) and
+ * rounds (default 5).
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class ConcurrentHashTreeStressTest {
+    static final String[] STATS = { "PTS", "REB", "AST", "STL", "BLK" };
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0].trim()) : 8;
+        int adds = args.length > 1 ? Integer.parseInt(args[1].trim()) : 20000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2].trim()) : 5;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                runRound(threads, adds, round);
+            }
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("ConcurrentHashTreeStressTest: " + rounds + " rounds of " + threads
+            + " threads x " + adds + " adds passed");
+    }
+
+    static void runRound(int threads, final int adds, final int round) throws Exception {
+        final ConcurrentHashTree tree = new ConcurrentHashTree();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < adds; i++) {
+                            tree.add(path(round, thread, i), values(thread, i));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError("round " + round + ": add threw " + failure[0]);
+        }
+
+        HashTree expected = new HashTree();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < adds; i++) {
+                expected.add(path(round, t, i), values(t, i));
+            }
+        }
+        check(round, tree, expected);
+    }
+
+    //Paths overlap between threads at every level, so the same segments are created concurrently
+    static List path(int round, int thread, int i) {
+        return Arrays.asList(new Object[] {
+            "season " + (2010 + round),
+            "team " + (i % 30),
+            "game " + ((i / 30) % 82),
+            "player " + ((i + thread) % 15)
+        });
+    }
+
+    //Shared stat keys plus one per thread, so a lost add from any thread shows up as a missing leaf
+    static Collection values(int thread, int i) {
+        List values = new ArrayList();
+        values.add(STATS[i % STATS.length]);
+        values.add(STATS[(i + thread) % STATS.length]);
+        values.add("thread " + thread);
+        return values;
+    }
+
+    static void check(int round, ConcurrentHashTree tree, HashTree expected) {
+        if (!tree.equals(expected)) {
+            throw new AssertionError("round " + round + ": tree differs from the sequential build");
+        }
+        if (tree.totalSize() != expected.totalSize()) {
+            throw new AssertionError("round " + round + ": totalSize " + tree.totalSize()
+                + ", expected " + expected.totalSize());
+        }
+        if (tree.leafCount() != expected.leafCount() || tree.height() != expected.height()) {
+            throw new AssertionError("round " + round + ": leafCount/height " + tree.leafCount()
+                + "/" + tree.height() + ", expected " + expected.leafCount() + "/" + expected.height());
+        }
+        //walk every node, checking its type and its children's parent links
+        long nodes = 0;
+        Deque stack = new ArrayDeque();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            HashTree node = (HashTree) stack.pop();
+            if (!(node instanceof ConcurrentHashTree)) {
+                throw new AssertionError("round " + round + ": node of type "
+                    + node.getClass().getName() + " in a ConcurrentHashTree");
+            }
+            Iterator iter = node.data.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                HashTree child = (HashTree) entry.getValue();
+                if (child.parent != node) {
+                    throw new AssertionError("round " + round + ": child " + entry.getKey()
+                        + " does not link to the node holding it");
+                }
+                nodes++;
+                stack.push(child);
+            }
+        }
+        if (nodes != expected.totalSize()) {
+            throw new AssertionError("round " + round + ": walked " + nodes + " nodes, expected "
+                + expected.totalSize());
+        }
+    }
+}
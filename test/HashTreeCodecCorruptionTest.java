@@ -0,0 +1,107 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Corruption test for the binary format, run with "ant test". A tree with string, number and
+ * serialized keys is written with and without a checksum, and each copy is damaged many times
+ * over: random bits flipped, random bytes overwritten, and the stream cut short. Reading a
+ * damaged copy must either succeed or fail with an IOException, never with any other
+ * exception or error, and a failed read must leave its target as it was. Every case is made
+ * from a fixed seed, so a failure names the case that reproduces it. Exits with status 1 on
+ * the first broken invariant.
+ *
+ * Argument: optional number of damaged copies per kind of damage (default 2000).
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HashTreeCodecCorruptionTest {
+    static final int FLIP = 0;
+    static final int OVERWRITE = 1;
+    static final int TRUNCATE = 2;
+    static final String[] DAMAGE = { "flip", "overwrite", "truncate" };
+
+    public static void main(String[] args) throws Exception {
+        int cases = args.length > 0 ? Integer.parseInt(args[0].trim()) : 2000;
+        HashTree tree = sample();
+        long read = 0;
+        long refused = 0;
+        try {
+            for (int checksum = 0; checksum < 2; checksum++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                tree.writeTo(out, checksum == 1);
+                byte[] bytes = out.toByteArray();
+                for (int damage = FLIP; damage <= TRUNCATE; damage++) {
+                    for (int i = 0; i < cases; i++) {
+                        String name = DAMAGE[damage] + " case " + i + (checksum == 1 ? " with" : " without")
+                            + " checksum";
+                        if (check(name, damage(bytes, damage, new Random(i * 3L + damage)))) {
+                            read++;
+                        }
+                        else {
+                            refused++;
+                        }
+                    }
+                }
+            }
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("HashTreeCodecCorruptionTest: " + (read + refused) + " damaged streams, "
+            + refused + " refused with an IOException, " + read + " read");
+    }
+
+    //A few hundred nodes over every kind of key the format has a tag for
+    static HashTree sample() {
+        HashTree tree = new HashTree();
+        for (int i = 0; i < 60; i++) {
+            tree.add(Arrays.asList(new Object[] { "team " + (i % 6), Integer.valueOf(i), "PTS" }),
+                Long.valueOf(i * 1000003L));
+            tree.add(Arrays.asList(new Object[] { "team " + (i % 6), Integer.valueOf(i), "REB" }),
+                Double.valueOf(i / 3.0));
+        }
+        tree.add(Arrays.asList(new Object[] { "extra", Boolean.TRUE, Character.valueOf('c') }),
+            Float.valueOf(1.5f));
+        tree.add(Arrays.asList(new Object[] { "extra", new BigInteger("123456789012345678901234567890") }),
+            (Object) null);
+        return tree;
+    }
+
+    static byte[] damage(byte[] bytes, int damage, Random random) {
+        if (damage == TRUNCATE) {
+            return Arrays.copyOf(bytes, random.nextInt(bytes.length));
+        }
+        byte[] copy = bytes.clone();
+        int changes = 1 + random.nextInt(3);
+        for (int i = 0; i < changes; i++) {
+            int at = random.nextInt(copy.length);
+            if (damage == FLIP) {
+                copy[at] ^= 1 << random.nextInt(8);
+            }
+            else {
+                copy[at] = (byte) random.nextInt(256);
+            }
+        }
+        return copy;
+    }
+
+    //Reads bytes into a tree holding one key; returns whether the read succeeded
+    static boolean check(String name, byte[] bytes) {
+        HashTree target = new HashTree();
+        target.add("untouched");
+        try {
+            target.readFrom(new ByteArrayInputStream(bytes));
+            return true;
+        } catch (IOException e) {
+            if (target.size() != 1 || !target.containsKey("untouched")) {
+                throw new AssertionError(name + ": failed read changed its target (" + e + ")");
+            }
+            return false;
+        } catch (Throwable e) {
+            throw new AssertionError(name + ": read threw " + e);
+        }
+    }
+}
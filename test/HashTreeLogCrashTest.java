@@ -0,0 +1,145 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Crash test for HashTreeLog, run with "ant test". A child JVM opens a log in a temporary
+ * directory and keeps changing its tree with a fixed sequence of add, remove, replaceKey and
+ * subtree adds, committing every COMMIT_EVERY changes and printing the number of the last
+ * change each commit covered. The log is compacted often, so kills also land in the middle of
+ * snapshot writes and log rotations. Once enough commits have been acknowledged the child is
+ * killed with destroyForcibly(), the log is opened again here, and the recovered tree must be
+ * the tree after some prefix of the changes that includes every acknowledged one. The next
+ * child carries on from there, so each round also checks that appends after a recovery are
+ * replayed. Exits with status 1 on a mismatch.
+ *
+ * Argument: optional number of crashes (default 5).
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class HashTreeLogCrashTest {
+    static final int COMMIT_EVERY = 10;
+    static final long COMPACT_BYTES = 32 * 1024;
+    //how far past the last acknowledged change the recovered tree may be
+    static final int MAX_UNACKNOWLEDGED = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child(new File(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int crashes = args.length > 0 ? Integer.parseInt(args[0].trim()) : 5;
+        File dir = Files.createTempDirectory("hashtreelog").toFile();
+        try {
+            //the tree after changes 0 to next - 1
+            HashTree expected = new HashTree();
+            int next = 0;
+            for (int round = 0; round < crashes; round++) {
+                long acked = crash(dir, next, 40 + 30 * round);
+                HashTreeLog log = HashTreeLog.open(dir);
+                try {
+                    LoggedHashTree recovered = log.tree();
+                    while (next <= acked) {
+                        change(expected, next++);
+                    }
+                    //the child may have committed more after the last acknowledgement read here
+                    while (!recovered.equals(expected) && next <= acked + MAX_UNACKNOWLEDGED) {
+                        change(expected, next++);
+                    }
+                    if (!recovered.equals(expected)) {
+                        System.out.println("FAILED: round " + round + ": recovered tree matches no state"
+                            + " from change " + acked + " on");
+                        System.exit(1);
+                    }
+                }
+                finally {
+                    log.close();
+                }
+                System.out.println("round " + round + ": " + acked + " changes acknowledged, "
+                    + next + " recovered");
+            }
+        }
+        finally {
+            File[] files = dir.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            dir.delete();
+        }
+        System.out.println("HashTreeLogCrashTest: " + crashes + " crashes recovered");
+    }
+
+    /* Runs a child from change next until it has acknowledged commits commits, kills it and
+     * returns the number of the last change acknowledged.
+     */
+    static long crash(File dir, int next, int commits) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(Arrays.asList(new String[] {
+            java, "-cp", System.getProperty("java.class.path"), "HashTreeLogCrashTest",
+            "child", dir.getPath(), Integer.toString(next)
+        }));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process child = builder.start();
+        long acked = next - 1;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(child.getInputStream(), "UTF-8"));
+            for (int i = 0; i < commits; i++) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new IllegalStateException("Child exited after " + i + " commits.");
+                }
+                acked = Long.parseLong(line.trim());
+            }
+        }
+        finally {
+            child.destroyForcibly();
+            child.waitFor();
+        }
+        return acked;
+    }
+
+    //Changes the log's tree forever, acknowledging each commit on stdout
+    static void child(File dir, int next) throws IOException {
+        HashTreeLog log = HashTreeLog.open(dir, 0, COMPACT_BYTES);
+        LoggedHashTree tree = log.tree();
+        for (int i = next; ; i++) {
+            change(tree, i);
+            if (i % COMMIT_EVERY == COMMIT_EVERY - 1) {
+                log.commit();
+                System.out.println(i);
+                System.out.flush();
+            }
+        }
+    }
+
+    //Makes change number i, the same way on any tree
+    static void change(HashTree tree, int i) {
+        //removes and renames go after the player added a few changes earlier, so they do something
+        int added = i % 10 == 7 ? i - 3 : i % 10 == 8 ? i - 2 : i;
+        String game = "game " + (added % 40);
+        String player = "player " + (added % 311);
+        HashTree node = tree.getTree(game);
+        switch (i % 10) {
+            case 7:
+                if (node != null) {
+                    node.remove(player);
+                }
+                break;
+            case 8:
+                if (node != null && node.containsKey(player)) {
+                    node.replaceKey(player, "player " + ((i * 7) % 311));
+                }
+                break;
+            case 9:
+                HashTree box = new HashTree();
+                box.add(Arrays.asList(new Object[] { "box " + (i % 13), "REB" }), Integer.valueOf(i % 17));
+                box.add(Arrays.asList(new Object[] { "box " + (i % 13), "AST" }), Integer.valueOf(i % 11));
+                tree.add(game, box);
+                break;
+            default:
+                tree.add(Arrays.asList(new Object[] { game, player, "PTS" }), Integer.valueOf(i % 50));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Test for HashTreeMerge, run with "ant test". The same target and source are merged with
+ * every Mode (COPY, GRAFT, COPY_ON_WRITE) and every ConflictPolicy (UNION, KEEP_TARGET,
+ * TAKE_SOURCE). For each pair, diff must name the paths the merge then changes, the target
+ * must match the tree the policy describes, and the source must be left whole, or for GRAFT
+ * lose exactly the branches moved out of it. Both trees are then changed below the merged
+ * keys, and each must still match, with totalSize, leafCount, height and hashCode equal to
+ * those of the same tree built from scratch, so neither sees the other's changes or keeps
+ * stale counts. Exits with status 1 on the first broken invariant.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class HashTreeMergeTest {
+    static final HashTreeMerge.Mode[] MODES = HashTreeMerge.Mode.values();
+    static final HashTreeMerge.ConflictPolicy[] POLICIES = {
+        HashTreeMerge.UNION, HashTreeMerge.KEEP_TARGET, HashTreeMerge.TAKE_SOURCE
+    };
+    static final String[] POLICY_NAMES = { "UNION", "KEEP_TARGET", "TAKE_SOURCE" };
+
+    public static void main(String[] args) {
+        int runs = 0;
+        try {
+            for (int m = 0; m < MODES.length; m++) {
+                for (int p = 0; p < POLICIES.length; p++) {
+                    run(MODES[m], p);
+                    runs++;
+                }
+            }
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("HashTreeMergeTest: " + runs + " mode and policy pairs passed");
+    }
+
+    static void run(HashTreeMerge.Mode mode, int policy) {
+        String name = mode + "/" + POLICY_NAMES[policy];
+        HashTree target = target();
+        HashTree source = source();
+        //take digests and counts first, so a tree that misses a change is left with stale ones
+        check(name + " target before", target, target());
+        check(name + " source before", source, source());
+        HashTree c = source.getTree("c");
+
+        HashTreeMerge merge = HashTreeMerge.create().mode(mode).policy(POLICIES[policy]);
+        Set diff = new HashSet(merge.diff(target, source));
+        if (!diff.equals(expectedDiff(policy))) {
+            throw new AssertionError(name + ": diff " + diff + ", expected " + expectedDiff(policy));
+        }
+        long changed = merge.merge(target, source);
+        if (changed != diff.size()) {
+            throw new AssertionError(name + ": merge changed " + changed + " subtrees, diff named "
+                + diff.size());
+        }
+        HashTree expectedTarget = expectedTarget(policy);
+        HashTree expectedSource = mode == HashTreeMerge.Mode.GRAFT ? graftedSource(policy) : source();
+        check(name + " target", target, expectedTarget);
+        check(name + " source", source, expectedSource);
+        if (mode == HashTreeMerge.Mode.GRAFT && target.getTree("c") != c) {
+            throw new AssertionError(name + ": grafted branch c is not the source's own node");
+        }
+
+        //change both trees below the merged keys, through the paths as the class doc asks
+        List[] paths = {
+            Arrays.asList(new Object[] { "c", "w" }),
+            Arrays.asList(new Object[] { "shared", "both" }),
+            Arrays.asList(new Object[] { "b" })
+        };
+        for (int i = 0; i < paths.length; i++) {
+            target.add(paths[i], "target " + i);
+            expectedTarget.add(paths[i], "target " + i);
+            if (contains(source, paths[i])) {
+                source.add(paths[i], "source " + i);
+                expectedSource.add(paths[i], "source " + i);
+            }
+        }
+        check(name + " target after changes", target, expectedTarget);
+        check(name + " source after changes", source, expectedSource);
+    }
+
+    static boolean contains(HashTree tree, List path) {
+        for (int i = 0; tree != null && i < path.size(); i++) {
+            tree = tree.getTree(path.get(i));
+        }
+        return tree != null;
+    }
+
+    static HashTree tree(Object[][] paths) {
+        HashTree tree = new HashTree();
+        for (int i = 0; i < paths.length; i++) {
+            List path = Arrays.asList(paths[i]);
+            tree.add(path.subList(0, path.size() - 1), path.get(path.size() - 1));
+        }
+        return tree;
+    }
+
+    static HashTree target() {
+        return tree(new Object[][] {
+            { "a", "x" }, { "b", "y", "1" }, { "shared", "t1" }, { "shared", "both", "tt" }
+        });
+    }
+
+    static HashTree source() {
+        return tree(new Object[][] {
+            { "b", "z", "2" }, { "c", "w", "3" }, { "c", "w", "4" }, { "shared", "s1" },
+            { "shared", "both", "ss" }
+        });
+    }
+
+    static HashTree expectedTarget(int policy) {
+        if (policy == 0) {
+            return tree(new Object[][] {
+                { "a", "x" }, { "b", "y", "1" }, { "b", "z", "2" }, { "c", "w", "3" }, { "c", "w", "4" },
+                { "shared", "t1" }, { "shared", "s1" }, { "shared", "both", "tt" }, { "shared", "both", "ss" }
+            });
+        }
+        if (policy == 1) {
+            return tree(new Object[][] {
+                { "a", "x" }, { "b", "y", "1" }, { "c", "w", "3" }, { "c", "w", "4" },
+                { "shared", "t1" }, { "shared", "both", "tt" }
+            });
+        }
+        return tree(new Object[][] {
+            { "a", "x" }, { "b", "z", "2" }, { "c", "w", "3" }, { "c", "w", "4" },
+            { "shared", "s1" }, { "shared", "both", "ss" }
+        });
+    }
+
+    //What GRAFT leaves of the source: everything but the non-leaf branches it moved out
+    static HashTree graftedSource(int policy) {
+        if (policy == 0) {
+            return tree(new Object[][] { { "b" }, { "shared", "s1" }, { "shared", "both", "ss" } });
+        }
+        if (policy == 1) {
+            return tree(new Object[][] {
+                { "b", "z", "2" }, { "shared", "s1" }, { "shared", "both", "ss" }
+            });
+        }
+        return new HashTree();
+    }
+
+    static Set expectedDiff(int policy) {
+        Object[][] paths = policy == 0
+            ? new Object[][] { { "b", "z" }, { "c" }, { "shared", "s1" }, { "shared", "both", "ss" } }
+            : policy == 1 ? new Object[][] { { "c" } }
+            : new Object[][] { { "b" }, { "c" }, { "shared" } };
+        Set result = new HashSet();
+        for (int i = 0; i < paths.length; i++) {
+            result.add(new ArrayList(Arrays.asList(paths[i])));
+        }
+        return result;
+    }
+
+    static void check(String name, HashTree tree, HashTree expected) {
+        if (!tree.equals(expected) || !expected.equals(tree)) {
+            throw new AssertionError(name + ": " + tree + " does not equal " + expected);
+        }
+        if (tree.hashCode() != expected.hashCode()) {
+            throw new AssertionError(name + ": hashCode " + tree.hashCode() + ", expected "
+                + expected.hashCode());
+        }
+        if (tree.totalSize() != expected.totalSize() || tree.leafCount() != expected.leafCount()
+                || tree.height() != expected.height()) {
+            throw new AssertionError(name + ": totalSize/leafCount/height " + tree.totalSize() + "/"
+                + tree.leafCount() + "/" + tree.height() + ", expected " + expected.totalSize() + "/"
+                + expected.leafCount() + "/" + expected.height());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/* HashTree Program
+ * Author: Matthew Prom
+ * Test for subtrees handed to more than one place, run with "ant test". One subtree is set
+ * into two trees (and under two keys of one node), then changed directly and through each
+ * holder. The first place takes the subtree itself and every later one a copy, so each
+ * holder must afterwards compare, hash and count (totalSize, leafCount, height) exactly like
+ * the same tree built from scratch, with no holder left with a digest or count that missed a
+ * change. Exits with status 1 on the first broken invariant.
+ */
+import java.util.Arrays;
+
+public class HashTreeSharedSubtreeTest {
+    public static void main(String[] args) {
+        try {
+            twoTrees();
+            twoKeys();
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("HashTreeSharedSubtreeTest: passed");
+    }
+
+    //One subtree set into two trees, then changed through each of them and directly
+    static void twoTrees() {
+        HashTree box = new HashTree();
+        box.add(Arrays.asList(new Object[] { "player 1", "PTS" }), "12");
+        HashTree first = new HashTree();
+        HashTree second = new HashTree();
+        first.set("game 1", box);
+        second.set("game 1", box);
+        //take digests and counts now, so a holder that misses a change is left with stale ones
+        check("first holder before changes", first, first);
+        check("second holder before changes", second, second);
+
+        box.add(Arrays.asList(new Object[] { "player 2", "REB" }), "7");
+        first.getTree("game 1").add(Arrays.asList(new Object[] { "player 3", "AST" }), "4");
+        second.getTree("game 1").add(Arrays.asList(new Object[] { "player 4", "STL" }), "2");
+
+        HashTree expectedFirst = new HashTree();
+        HashTree expectedSecond = new HashTree();
+        expectedFirst.add(Arrays.asList(new Object[] { "game 1", "player 1", "PTS" }), "12");
+        expectedSecond.add(Arrays.asList(new Object[] { "game 1", "player 1", "PTS" }), "12");
+        //the first tree holds box itself, the second a copy made before box changed
+        expectedFirst.add(Arrays.asList(new Object[] { "game 1", "player 2", "REB" }), "7");
+        expectedFirst.add(Arrays.asList(new Object[] { "game 1", "player 3", "AST" }), "4");
+        expectedSecond.add(Arrays.asList(new Object[] { "game 1", "player 4", "STL" }), "2");
+        check("first holder", first, expectedFirst);
+        check("second holder", second, expectedSecond);
+
+        check("subtree set twice", box, expectedFirst.getTree("game 1"));
+    }
+
+    //One subtree set under two keys of the same node, then changed through one key
+    static void twoKeys() {
+        HashTree tree = new HashTree();
+        HashTree box = new HashTree();
+        box.add("player 1").add("PTS");
+        tree.set("game 1", box);
+        tree.set("game 2", box);
+        check("one node holding a subtree twice, before changes", tree, tree);
+        tree.getTree("game 1").add("player 2").add("REB");
+
+        HashTree expected = new HashTree();
+        expected.add(Arrays.asList(new Object[] { "game 1", "player 1" }), "PTS");
+        expected.add(Arrays.asList(new Object[] { "game 1", "player 2" }), "REB");
+        expected.add(Arrays.asList(new Object[] { "game 2", "player 1" }), "PTS");
+        check("one node holding a subtree twice", tree, expected);
+    }
+
+    static void check(String name, HashTree tree, HashTree expected) {
+        if (!tree.equals(expected) || !expected.equals(tree)) {
+            throw new AssertionError(name + ": " + tree + " does not equal " + expected);
+        }
+        if (tree.hashCode() != expected.hashCode()) {
+            throw new AssertionError(name + ": hashCode " + tree.hashCode() + ", expected "
+                + expected.hashCode());
+        }
+        if (tree.totalSize() != expected.totalSize() || tree.leafCount() != expected.leafCount()
+                || tree.height() != expected.height()) {
+            throw new AssertionError(name + ": totalSize/leafCount/height " + tree.totalSize() + "/"
+                + tree.leafCount() + "/" + tree.height() + ", expected " + expected.totalSize() + "/"
+                + expected.leafCount() + "/" + expected.height());
+        }
+    }
+}